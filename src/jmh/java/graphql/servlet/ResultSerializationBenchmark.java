@@ -0,0 +1,78 @@
+package graphql.servlet;
+
+import graphql.ExecutionResult;
+import graphql.ExecutionResultImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares serializing a typical result through the {@code ObjectMapper} with the {@link
+ * graphql.servlet.internal.ResultTreeWriter}.  Run with {@code ./gradlew jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultSerializationBenchmark {
+
+    @Param({"10", "1000"})
+    public int items;
+
+    private ExecutionResult result;
+    private GraphQLObjectMapper objectMapperPath;
+    private GraphQLObjectMapper resultTreeWriterPath;
+
+    @Setup
+    public void setup() {
+        List<Object> list = new ArrayList<>(items);
+        for (int i = 0; i < items; i++) {
+            Map<String, Object> author = new LinkedHashMap<>();
+            author.put("id", "author-" + i % 10);
+            author.put("name", "Author " + i % 10);
+
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("id", i);
+            item.put("title", "Item number " + i);
+            item.put("price", i * 1.25);
+            item.put("available", i % 2 == 0);
+            item.put("description", null);
+            item.put("tags", new ArrayList<>(Collections.nCopies(3, "tag")));
+            item.put("author", author);
+            list.add(item);
+        }
+
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("items", list);
+        result = new ExecutionResultImpl(data, Collections.emptyList());
+        objectMapperPath = GraphQLObjectMapper.newBuilder().build();
+        resultTreeWriterPath = GraphQLObjectMapper.newBuilder().withResultTreeWriter(true).build();
+    }
+
+    @Benchmark
+    public byte[] objectMapper() {
+        return objectMapperPath.serializeResultAsJsonBytes(result);
+    }
+
+    @Benchmark
+    public byte[] resultTreeWriter() {
+        return resultTreeWriterPath.serializeResultAsJsonBytes(result);
+    }
+}
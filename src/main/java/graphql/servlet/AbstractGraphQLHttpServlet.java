@@ -1,26 +1,61 @@
 package graphql.servlet;
 
-import com.google.common.io.ByteStreams;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.common.io.CharStreams;
+import com.google.common.io.CountingOutputStream;
 import graphql.ExecutionResult;
+import graphql.ExecutionResultImpl;
+import graphql.GraphQLError;
 import graphql.introspection.IntrospectionQuery;
 import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLSchema;
+import graphql.servlet.internal.AsyncRequestBodyReader;
+import graphql.servlet.internal.AsyncRequestExecutor;
+import graphql.servlet.internal.AsyncResponseWriter;
+import graphql.servlet.internal.BufferPool;
+import graphql.servlet.internal.BufferedBodyRequest;
+import graphql.servlet.internal.BufferedResponse;
+import graphql.servlet.internal.ChunkedBuffer;
+import graphql.servlet.internal.CompressingResponse;
 import graphql.servlet.internal.GraphQLRequest;
+import graphql.servlet.internal.MultipartUploads;
+import graphql.servlet.internal.ResponseSizeEstimator;
+import graphql.servlet.internal.SpillingOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.MultipartConfigElement;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Part;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -35,9 +70,21 @@ public abstract class AbstractGraphQLHttpServlet extends HttpServlet implements
     public static final String APPLICATION_GRAPHQL = "application/graphql";
     public static final int STATUS_OK = 200;
     public static final int STATUS_BAD_REQUEST = 400;
+    public static final int STATUS_PAYLOAD_TOO_LARGE = 413;
+    public static final long DEFAULT_MAX_REQUEST_BODY_SIZE = 16 * 1024 * 1024;
+    public static final int STATUS_SERVICE_UNAVAILABLE = 503;
 
+    /**
+     * Seconds a client is asked to wait before retrying a request that was rejected because the servlet was too busy.
+     */
+    public static final String RETRY_AFTER_SECONDS = "1";
+
+    private static final GraphQLError MALFORMED_BATCH_ERROR = new GenericGraphQLError("Malformed request, the rest of the batch was not read");
     private static final GraphQLRequest INTROSPECTION_REQUEST = new GraphQLRequest(IntrospectionQuery.INTROSPECTION_QUERY, new HashMap<>(), null);
 
+    // Responses to operations whose responses have been larger than this on average are streamed instead of buffered.
+    private static final int MAX_BUFFERED_RESPONSE_SIZE = 1024 * 1024;
+
     protected abstract GraphQLQueryInvoker getQueryInvoker();
 
     protected abstract GraphQLInvocationInputFactory getInvocationInputFactory();
@@ -50,18 +97,32 @@ public abstract class AbstractGraphQLHttpServlet extends HttpServlet implements
     private final HttpRequestHandler postHandler;
 
     private final boolean asyncServletMode;
+    private final AsyncRequestExecutor asyncRequestExecutor;
+    private final BufferPool bufferPool = new BufferPool();
+    private final ResponseSizeEstimator responseSizes = new ResponseSizeEstimator();
 
     public AbstractGraphQLHttpServlet() {
         this(null, false);
     }
 
     public AbstractGraphQLHttpServlet(List<GraphQLServletListener> listeners, boolean asyncServletMode) {
+        this(listeners, asyncServletMode, null);
+    }
+
+    /**
+     * @param asyncExecutor runs the requests in async servlet mode, a bounded default is used if null.  It is shut down
+     *                      when the servlet is destroyed.
+     */
+    public AbstractGraphQLHttpServlet(List<GraphQLServletListener> listeners, boolean asyncServletMode, ExecutorService asyncExecutor) {
         this.listeners = listeners != null ? new ArrayList<>(listeners) : new ArrayList<>();
         this.asyncServletMode = asyncServletMode;
+        this.asyncRequestExecutor = asyncServletMode
+            ? new AsyncRequestExecutor(asyncExecutor != null ? asyncExecutor : AsyncRequestExecutor.newDefaultExecutorService())
+            : null;
 
         this.getHandler = (request, response) -> {
             GraphQLInvocationInputFactory invocationInputFactory = getInvocationInputFactory();
-            GraphQLObjectMapper graphQLObjectMapper = getGraphQLObjectMapper();
+            GraphQLObjectMapper graphQLObjectMapper = negotiateFormats(getGraphQLObjectMapper(), request, response);
             GraphQLQueryInvoker queryInvoker = getQueryInvoker();
 
             String path = request.getPathInfo();
@@ -69,127 +130,185 @@ public abstract class AbstractGraphQLHttpServlet extends HttpServlet implements
                 path = request.getServletPath();
             }
             if (path.contentEquals("/schema.json")) {
-                query(queryInvoker, graphQLObjectMapper, invocationInputFactory.create(INTROSPECTION_REQUEST, request), response);
+                GraphQLSingleInvocationInput invocationInput = invocationInputFactory.create(INTROSPECTION_REQUEST, request);
+                ETagSupport eTagSupport = getETagSupport();
+                // The ETag only identifies the schema, so it is only used for one of its representations.
+                if (eTagSupport != null && graphQLObjectMapper.getResponseFormat() == WireFormat.JSON && eTagSupport.checkSchema(request, response, invocationInput.getSchema())) {
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                return query(queryInvoker, graphQLObjectMapper, invocationInput, response);
             } else {
                 String query = request.getParameter("query");
                 if (query != null) {
-
-                    if (isBatchedQuery(query)) {
-                        queryBatched(queryInvoker, graphQLObjectMapper, invocationInputFactory.createReadOnly(graphQLObjectMapper.readBatchedGraphQLRequest(query), request), response);
-                    } else {
-                        final Map<String, Object> variables = new HashMap<>();
-                        if (request.getParameter("variables") != null) {
-                            variables.putAll(graphQLObjectMapper.deserializeVariables(request.getParameter("variables")));
+                    try (JsonParser parser = graphQLObjectMapper.createParser(query)) {
+                        if (isBatchedQuery(graphQLObjectMapper, parser)) {
+                            return queryBatched(queryInvoker, graphQLObjectMapper, invocationInputFactory.createReadOnly(graphQLObjectMapper.readBatchedGraphQLRequest(parser), request), response);
                         }
+                    }
+                }
 
-                        String operationName = request.getParameter("operationName");
-
-                        query(queryInvoker, graphQLObjectMapper, invocationInputFactory.createReadOnly(new GraphQLRequest(query, variables, operationName), request), response);
+                Map<String, Object> variables = new HashMap<>();
+                if (request.getParameter("variables") != null) {
+                    try {
+                        variables = graphQLObjectMapper.deserializeVariables(request.getParameter("variables"));
+                    } catch (RuntimeException e) {
+                        response.setStatus(STATUS_BAD_REQUEST);
+                        log.info("Bad GET request: reading the variables failed", e);
+                        return CompletableFuture.completedFuture(null);
                     }
+                }
+
+                String operationName = request.getParameter("operationName");
+
+                GraphQLRequest graphQLRequest = new GraphQLRequest(query, variables, operationName);
+                if (request.getParameter("extensions") != null) {
+                    graphQLRequest.setExtensions(graphQLObjectMapper.deserializeExtensions(request.getParameter("extensions")));
+                }
+
+                if (query != null || getPersistedQueryHash(graphQLRequest) != null) {
+                    ResponseCache responseCache = graphQLObjectMapper.getResponseFormat() == WireFormat.JSON ? getResponseCache() : null;
+                    return query(queryInvoker, graphQLObjectMapper, invocationInputFactory.createReadOnly(graphQLRequest, request), response, responseCache, getETagSupport());
                 } else {
                     response.setStatus(STATUS_BAD_REQUEST);
-                    log.info("Bad GET request: path was not \"/schema.json\" or no query variable named \"query\" given");
+                    log.info("Bad GET request: path was not \"/schema.json\" or no query variable named \"query\" or persisted query hash given");
+                    return CompletableFuture.completedFuture(null);
                 }
             }
         };
 
         this.postHandler = (request, response) -> {
             GraphQLInvocationInputFactory invocationInputFactory = getInvocationInputFactory();
-            GraphQLObjectMapper graphQLObjectMapper = getGraphQLObjectMapper();
+            GraphQLObjectMapper graphQLObjectMapper = negotiateFormats(getGraphQLObjectMapper(), request, response);
             GraphQLQueryInvoker queryInvoker = getQueryInvoker();
 
             try {
                 if (APPLICATION_GRAPHQL.equals(request.getContentType())) {
                     String query = CharStreams.toString(request.getReader());
-                    query(queryInvoker, graphQLObjectMapper, invocationInputFactory.create(new GraphQLRequest(query, null, null)), response);
-                } else if (request.getContentType() != null && request.getContentType().startsWith("multipart/form-data") && !request.getParts().isEmpty()) {
-                    final Map<String, List<Part>> fileItems = request.getParts().stream()
-                            .collect(Collectors.toMap(
-                                    Part::getName,
-                                    Collections::singletonList,
-                                    (l1, l2) -> Stream.concat(l1.stream(), l2.stream()).collect(Collectors.toList())));
-
-                    if (fileItems.containsKey("graphql")) {
-                        final Optional<Part> graphqlItem = getFileItem(fileItems, "graphql");
-                        if (graphqlItem.isPresent()) {
-                            InputStream inputStream = graphqlItem.get().getInputStream();
-
-                            if (!inputStream.markSupported()) {
-                                inputStream = new BufferedInputStream(inputStream);
-                            }
-
-                            if (isBatchedQuery(inputStream)) {
-                                GraphQLBatchedInvocationInput invocationInput = invocationInputFactory.create(graphQLObjectMapper.readBatchedGraphQLRequest(inputStream), request);
-                                invocationInput.getContext().setFiles(fileItems);
-                                queryBatched(queryInvoker, graphQLObjectMapper, invocationInput, response);
-                                return;
-                            } else {
-                                GraphQLSingleInvocationInput invocationInput = invocationInputFactory.create(graphQLObjectMapper.readGraphQLRequest(inputStream), request);
-                                invocationInput.getContext().setFiles(fileItems);
-                                query(queryInvoker, graphQLObjectMapper, invocationInput, response);
-                                return;
-                            }
-                        }
-                    } else if (fileItems.containsKey("query")) {
-                        final Optional<Part> queryItem = getFileItem(fileItems, "query");
-                        if (queryItem.isPresent()) {
-                            InputStream inputStream = queryItem.get().getInputStream();
-
-                            if (!inputStream.markSupported()) {
-                                inputStream = new BufferedInputStream(inputStream);
-                            }
-
-                            if (isBatchedQuery(inputStream)) {
-                                GraphQLBatchedInvocationInput invocationInput = invocationInputFactory.create(graphQLObjectMapper.readBatchedGraphQLRequest(inputStream), request);
-                                invocationInput.getContext().setFiles(fileItems);
-                                queryBatched(queryInvoker, graphQLObjectMapper, invocationInput, response);
-                                return;
-                            } else {
-                                String query = new String(ByteStreams.toByteArray(inputStream));
-
-                                Map<String, Object> variables = null;
-                                final Optional<Part> variablesItem = getFileItem(fileItems, "variables");
-                                if (variablesItem.isPresent()) {
-                                    variables = graphQLObjectMapper.deserializeVariables(new String(ByteStreams.toByteArray(variablesItem.get().getInputStream())));
-                                }
-
-                                String operationName = null;
-                                final Optional<Part> operationNameItem = getFileItem(fileItems, "operationName");
-                                if (operationNameItem.isPresent()) {
-                                    operationName = new String(ByteStreams.toByteArray(operationNameItem.get().getInputStream())).trim();
-                                }
-
-                                GraphQLSingleInvocationInput invocationInput = invocationInputFactory.create(new GraphQLRequest(query, variables, operationName), request);
-                                invocationInput.getContext().setFiles(fileItems);
-                                query(queryInvoker, graphQLObjectMapper, invocationInput, response);
-                                return;
-                            }
-                        }
+                    return query(queryInvoker, graphQLObjectMapper, invocationInputFactory.create(new GraphQLRequest(query, null, null)), response);
+                } else if (isMultipartRequest(request) && !request.getParts().isEmpty()) {
+                    Collection<Part> parts = request.getParts();
+                    if (exceedsMultipartLimits(parts)) {
+                        response.setStatus(STATUS_PAYLOAD_TOO_LARGE);
+                        log.info("Bad POST multipart request: parts exceed the configured size limits");
+                        MultipartUploads.delete(parts);
+                        return CompletableFuture.completedFuture(null);
                     }
 
-                    response.setStatus(STATUS_BAD_REQUEST);
-                    log.info("Bad POST multipart request: no part named \"graphql\" or \"query\"");
-                } else {
-                    // this is not a multipart request
-                    InputStream inputStream = request.getInputStream();
-
-                    if (!inputStream.markSupported()) {
-                        inputStream = new BufferedInputStream(inputStream);
+                    CompletableFuture<Void> completion;
+                    try {
+                        completion = queryMultipart(queryInvoker, graphQLObjectMapper, invocationInputFactory, parts, request, response);
+                    } catch (Exception e) {
+                        MultipartUploads.delete(parts);
+                        throw e;
                     }
 
-                    if (isBatchedQuery(inputStream)) {
-                        queryBatched(queryInvoker, graphQLObjectMapper, invocationInputFactory.create(graphQLObjectMapper.readBatchedGraphQLRequest(inputStream), request), response);
-                    } else {
-                        query(queryInvoker, graphQLObjectMapper, invocationInputFactory.create(graphQLObjectMapper.readGraphQLRequest(inputStream), request), response);
+                    // Temporary files are deleted as soon as the response is complete rather than when the request is recycled.
+                    return completion.whenComplete((result, throwable) -> {
+                        Exception failure = MultipartUploads.delete(parts);
+                        if (failure != null) {
+                            log.warn("Failed to delete multipart request parts", failure);
+                        }
+                    });
+                } else {
+                    // this is not a multipart request
+                    try (JsonParser parser = graphQLObjectMapper.createParser(request.getInputStream())) {
+                        if (graphQLObjectMapper.isBatchedRequest(parser) && isBatchPipelining()) {
+                            return queryPipelined(queryInvoker, graphQLObjectMapper, invocationInputFactory, graphQLObjectMapper.readBatchedGraphQLRequestLazily(parser), request, response);
+                        } else if (graphQLObjectMapper.isBatchedRequest(parser)) {
+                            return queryBatched(queryInvoker, graphQLObjectMapper, invocationInputFactory.create(graphQLObjectMapper.readBatchedGraphQLRequest(parser), request), response);
+                        } else {
+                            return query(queryInvoker, graphQLObjectMapper, invocationInputFactory.create(graphQLObjectMapper.readGraphQLRequest(parser), request), response);
+                        }
                     }
                 }
             } catch (Exception e) {
                 log.info("Bad POST request: parsing failed", e);
                 response.setStatus(STATUS_BAD_REQUEST);
+                return CompletableFuture.completedFuture(null);
             }
         };
     }
 
+    /**
+     * @return the cache used for automatic persisted queries, or null if they aren't supported
+     */
+    protected PersistedQueryCache getPersistedQueryCache() {
+        return null;
+    }
+
+    /**
+     * @return the cache for responses to read-only queries, or null if they aren't cached
+     */
+    protected ResponseCache getResponseCache() {
+        return null;
+    }
+
+    /**
+     * Returns the limits for multipart requests and where their parts are spilled to disk.  Containers only apply them
+     * when the servlet is registered with them, e.g. through {@code ServletRegistration.Dynamic.setMultipartConfig},
+     * the size limits are checked again before anything is executed either way.
+     *
+     * @return the multipart config, or null if the container defaults apply
+     */
+    public MultipartConfigElement getMultipartConfig() {
+        return null;
+    }
+
+    /**
+     * @return the cache for responses to the standard introspection query, or null if it's always executed
+     */
+    protected IntrospectionCache getIntrospectionCache() {
+        return null;
+    }
+
+    /**
+     * @return the ETag support for GET queries and {@code /schema.json}, or null if they don't get ETags
+     */
+    protected ETagSupport getETagSupport() {
+        return null;
+    }
+
+    /**
+     * @return the compression applied to responses, or null if they aren't compressed
+     */
+    protected ResponseCompression getResponseCompression() {
+        return null;
+    }
+
+    /**
+     * @return true if the operations of batched POST requests are executed while the rest of the batch is still being
+     * read, so neither the requests nor the results of a batch are ever held in memory all at once
+     */
+    protected boolean isBatchPipelining() {
+        return false;
+    }
+
+    /**
+     * @return the maximum size in bytes of the POST bodies buffered in async servlet mode, larger ones are answered with
+     * 413; 0 for no limit
+     */
+    protected long getMaxRequestBodySize() {
+        return DEFAULT_MAX_REQUEST_BODY_SIZE;
+    }
+
+    /**
+     * @return the limiter requests are admitted through, or null if their concurrency isn't limited
+     */
+    protected ConcurrencyLimiter getConcurrencyLimiter() {
+        return null;
+    }
+
+    /**
+     * GET requests can't execute mutations, so a separate limiter keeps a burst of mutations from shedding the cheap
+     * read-only queries and vice versa.
+     *
+     * @return the limiter GET requests are admitted through, or null if they share {@link #getConcurrencyLimiter()}
+     */
+    protected ConcurrencyLimiter getReadOnlyConcurrencyLimiter() {
+        return null;
+    }
+
     public void addListener(GraphQLServletListener servletListener) {
         listeners.add(servletListener);
     }
@@ -217,73 +336,713 @@ public abstract class AbstractGraphQLHttpServlet extends HttpServlet implements
         }
     }
 
-    private void doRequestAsync(HttpServletRequest request, HttpServletResponse response, HttpRequestHandler handler) {
+    @Override
+    public int getAsyncActiveWorkers() {
+        return asyncRequestExecutor != null ? asyncRequestExecutor.getActiveWorkers() : 0;
+    }
+
+    @Override
+    public long getAsyncRequestsExecuted() {
+        return asyncRequestExecutor != null ? asyncRequestExecutor.getExecutedCount() : 0;
+    }
+
+    @Override
+    public long getAsyncRequestsRejected() {
+        return asyncRequestExecutor != null ? asyncRequestExecutor.getRejectedCount() : 0;
+    }
+
+    @Override
+    public long getAsyncQueueWaitMillis() {
+        return asyncRequestExecutor != null ? asyncRequestExecutor.getQueueWaitTime(TimeUnit.MILLISECONDS) : 0;
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        return (int) sumOverLimiters(ConcurrencyLimiter::getLimit);
+    }
+
+    @Override
+    public int getConcurrencyInFlight() {
+        return (int) sumOverLimiters(ConcurrencyLimiter::getInFlight);
+    }
+
+    @Override
+    public long getConcurrencyRejected() {
+        return sumOverLimiters(ConcurrencyLimiter::getRejected);
+    }
+
+    private long sumOverLimiters(ToLongFunction<ConcurrencyLimiter> value) {
+        ConcurrencyLimiter limiter = getConcurrencyLimiter();
+        ConcurrencyLimiter readOnlyLimiter = getReadOnlyConcurrencyLimiter();
+        return (limiter != null ? value.applyAsLong(limiter) : 0) + (readOnlyLimiter != null ? value.applyAsLong(readOnlyLimiter) : 0);
+    }
+
+    @Override
+    public void destroy() {
+        if (asyncRequestExecutor != null) {
+            asyncRequestExecutor.shutdown();
+        }
+        super.destroy();
+    }
+
+    /**
+     * @param readBody     whether the request has a body that should be read without blocking before it is handled
+     * @param onCompletion run once the response is complete, however the request ended
+     */
+    private void doRequestAsync(HttpServletRequest request, HttpServletResponse response, HttpRequestHandler handler, boolean readBody, Runnable onCompletion) throws IOException {
         if (asyncServletMode) {
-            AsyncContext asyncContext = request.startAsync();
+            long maxBodySize = getMaxRequestBodySize();
+            if (readBody && maxBodySize > 0 && !isMultipartRequest(request) && request.getContentLengthLong() > maxBodySize) {
+                log.info("Bad POST request: the body of {} bytes exceeds the maximum size of {} bytes", request.getContentLengthLong(), maxBodySize);
+                response.setStatus(STATUS_PAYLOAD_TOO_LARGE);
+                onCompletion.run();
+                return;
+            }
+
+            AsyncContext asyncContext = request.startAsync(request, response);
             HttpServletRequest asyncRequest = (HttpServletRequest) asyncContext.getRequest();
             HttpServletResponse asyncResponse = (HttpServletResponse) asyncContext.getResponse();
-            new Thread(() -> doRequest(asyncRequest, asyncResponse, handler, asyncContext)).start();
+
+            // Multipart bodies are parsed by the container, which blocks anyway.
+            if (readBody && !isMultipartRequest(asyncRequest)) {
+                ChunkedBuffer body = new ChunkedBuffer(bufferPool);
+                ServletInputStream inputStream = asyncRequest.getInputStream();
+                inputStream.setReadListener(new AsyncRequestBodyReader(inputStream, body, getMaxRequestBodySize(),
+                    () -> dispatchAsync(new BufferedBodyRequest(asyncRequest, body), asyncResponse, handler, asyncContext, () -> {
+                        body.release();
+                        onCompletion.run();
+                    }),
+                    t -> {
+                        body.release();
+                        onCompletion.run();
+                        if (t instanceof AsyncRequestBodyReader.RequestBodyTooLargeException) {
+                            log.info("Bad POST request: {}", t.getMessage());
+                            asyncResponse.setStatus(STATUS_PAYLOAD_TOO_LARGE);
+                        } else {
+                            log.info("Bad POST request: reading the body failed", t);
+                            asyncResponse.setStatus(STATUS_BAD_REQUEST);
+                        }
+                        asyncContext.complete();
+                    }));
+            } else {
+                dispatchAsync(asyncRequest, asyncResponse, handler, asyncContext, onCompletion);
+            }
         } else {
-            doRequest(request, response, handler, null);
+            try {
+                doRequest(request, response, handler);
+            } finally {
+                onCompletion.run();
+            }
+        }
+    }
+
+    /**
+     * Handles the request on the async executor.  The response body is buffered and written with a
+     * {@link javax.servlet.WriteListener} afterwards, so the worker is free again as soon as the response is complete
+     * rather than once the client has downloaded it.
+     */
+    private void dispatchAsync(HttpServletRequest request, HttpServletResponse response, HttpRequestHandler handler, AsyncContext asyncContext, Runnable onCompletion) {
+        BufferedResponse bufferedResponse = new BufferedResponse(response, new ChunkedBuffer(bufferPool));
+        Runnable complete = () -> {
+            bufferedResponse.release();
+            onCompletion.run();
+            asyncContext.complete();
+        };
+
+        try {
+            asyncRequestExecutor.execute(() -> doRequest(request, bufferedResponse, handler).whenComplete((result, throwable) -> writeAsync(bufferedResponse, response, complete)));
+        } catch (RejectedExecutionException e) {
+            log.warn("Rejected GraphQL request, all async workers are busy");
+            response.setStatus(STATUS_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", RETRY_AFTER_SECONDS);
+            complete.run();
         }
     }
 
-    private void doRequest(HttpServletRequest request, HttpServletResponse response, HttpRequestHandler handler, AsyncContext asyncContext) {
+    private void writeAsync(BufferedResponse bufferedResponse, HttpServletResponse response, Runnable complete) {
+        try {
+            ChunkedBuffer body = bufferedResponse.finish();
+            if (body.size() == 0) {
+                complete.run();
+                return;
+            }
+
+            response.setContentLength(body.size());
+            ServletOutputStream outputStream = response.getOutputStream();
+            outputStream.setWriteListener(new AsyncResponseWriter(outputStream, body, complete, t -> {
+                log.info("Writing the response failed", t);
+                complete.run();
+            }));
+        } catch (Throwable t) {
+            log.error("Error writing GraphQL response!", t);
+            complete.run();
+        }
+    }
+
+    private static boolean isMultipartRequest(HttpServletRequest request) {
+        return request.getContentType() != null && request.getContentType().startsWith("multipart/form-data");
+    }
+
+    private CompletableFuture<Void> doRequest(HttpServletRequest request, HttpServletResponse response, HttpRequestHandler handler) {
 
         List<GraphQLServletListener.RequestCallback> requestCallbacks = runListeners(l -> l.onRequest(request, response));
 
+        ResponseCompression responseCompression = getResponseCompression();
+        HttpServletResponse handlerResponse = responseCompression != null ? responseCompression.wrap(request, response) : response;
+
+        CompletableFuture<Void> completion;
         try {
-            handler.handle(request, response);
-            runCallbacks(requestCallbacks, c -> c.onSuccess(request, response));
+            completion = handler.handle(request, handlerResponse);
         } catch (Throwable t) {
-            response.setStatus(500);
-            log.error("Error executing GraphQL request!", t);
-            runCallbacks(requestCallbacks, c -> c.onError(request, response, t));
-        } finally {
-            runCallbacks(requestCallbacks, c -> c.onFinally(request, response));
-            if (asyncContext != null) {
-                asyncContext.complete();
-            }
+            completion = new CompletableFuture<>();
+            completion.completeExceptionally(t);
         }
+
+        // In async servlet mode execution may still be running, everything below happens once the response is complete.
+        return completion.whenComplete((result, failure) -> {
+            Throwable throwable = failure;
+            if (handlerResponse instanceof CompressingResponse) {
+                try {
+                    ((CompressingResponse) handlerResponse).finish();
+                } catch (IOException e) {
+                    throwable = throwable != null ? throwable : e;
+                }
+            }
+
+            try {
+                if (throwable == null) {
+                    runCallbacks(requestCallbacks, c -> c.onSuccess(request, response));
+                } else {
+                    Throwable t = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+                    response.setStatus(500);
+                    log.error("Error executing GraphQL request!", t);
+                    runCallbacks(requestCallbacks, c -> c.onError(request, response, t));
+                }
+            } finally {
+                runCallbacks(requestCallbacks, c -> c.onFinally(request, response));
+            }
+        });
+    }
+
+    /**
+     * Picks the format of the request body from its {@code Content-Type} and the format of the response from the
+     * {@code Accept} header.
+     */
+    private static GraphQLObjectMapper negotiateFormats(GraphQLObjectMapper graphQLObjectMapper, HttpServletRequest request, HttpServletResponse response) {
+        response.addHeader("Vary", "Accept");
+        return graphQLObjectMapper.forFormats(WireFormat.forContentType(request.getContentType()), WireFormat.negotiate(request.getHeader("Accept")));
     }
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        doRequestAsync(req, resp, getHandler);
+        ConcurrencyLimiter readOnlyLimiter = getReadOnlyConcurrencyLimiter();
+        doRequestLimited(req, resp, getHandler, false, readOnlyLimiter != null ? readOnlyLimiter : getConcurrencyLimiter());
     }
 
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        doRequestAsync(req, resp, postHandler);
+        doRequestLimited(req, resp, postHandler, true, getConcurrencyLimiter());
+    }
+
+    /**
+     * Admits the request through the limiter, or rejects it right away if the limit is reached.  Only requests that
+     * were executed feed their latency back into the limit.
+     */
+    private void doRequestLimited(HttpServletRequest request, HttpServletResponse response, HttpRequestHandler handler, boolean readBody, ConcurrencyLimiter limiter) throws IOException {
+        if (limiter == null) {
+            doRequestAsync(request, response, handler, readBody, () -> {});
+            return;
+        }
+
+        ConcurrencyLimiter.Permit permit = limiter.tryAcquire();
+        if (permit == null) {
+            log.debug("Rejected GraphQL request, the concurrency limit of {} is reached", limiter.getLimit());
+            response.setStatus(limiter.getRejectionStatus());
+            response.setHeader("Retry-After", limiter.getRetryAfter());
+            return;
+        }
+
+        HttpRequestHandler limitedHandler = (req, resp) -> handler.handle(req, resp).whenComplete((result, throwable) -> permit.release(true));
+        doRequestAsync(request, response, limitedHandler, readBody, () -> permit.release(false));
+    }
+
+    /**
+     * Handles the parts of a multipart request: either {@code operations} and {@code map} as in the GraphQL multipart
+     * request spec, a {@code graphql} part holding the JSON request, or separate {@code query}, {@code variables} and
+     * {@code operationName} parts.  All parts are available to resolvers through {@link GraphQLContext#getFiles()}.
+     */
+    private CompletableFuture<Void> queryMultipart(GraphQLQueryInvoker queryInvoker, GraphQLObjectMapper graphQLObjectMapper, GraphQLInvocationInputFactory invocationInputFactory, Collection<Part> parts, HttpServletRequest request, HttpServletResponse response) throws Exception {
+        final Map<String, List<Part>> fileItems = parts.stream()
+                .collect(Collectors.toMap(
+                        Part::getName,
+                        Collections::singletonList,
+                        (l1, l2) -> Stream.concat(l1.stream(), l2.stream()).collect(Collectors.toList())));
+
+        if (fileItems.containsKey("operations")) {
+            final Optional<Part> operationsItem = getFileItem(fileItems, "operations");
+            if (operationsItem.isPresent()) {
+                Map<String, List<String>> uploads = Collections.emptyMap();
+                final Optional<Part> mapItem = getFileItem(fileItems, "map");
+                if (mapItem.isPresent()) {
+                    try (InputStream inputStream = mapItem.get().getInputStream()) {
+                        uploads = graphQLObjectMapper.readMultipartMap(inputStream);
+                    }
+                }
+
+                try (JsonParser parser = graphQLObjectMapper.createParser(operationsItem.get().getInputStream())) {
+                    if (graphQLObjectMapper.isBatchedRequest(parser)) {
+                        List<GraphQLRequest> graphQLRequests = graphQLObjectMapper.readBatchedGraphQLRequest(parser);
+                        for (Map.Entry<String, List<String>> upload : uploads.entrySet()) {
+                            Part part = getUploadPart(fileItems, upload.getKey());
+                            upload.getValue().forEach(path -> MultipartUploads.mapUpload(graphQLRequests, path, part));
+                        }
+
+                        GraphQLBatchedInvocationInput invocationInput = invocationInputFactory.create(graphQLRequests, request);
+                        invocationInput.getContext().setFiles(fileItems);
+                        return queryBatched(queryInvoker, graphQLObjectMapper, invocationInput, response);
+                    } else {
+                        GraphQLRequest graphQLRequest = graphQLObjectMapper.readGraphQLRequest(parser);
+                        for (Map.Entry<String, List<String>> upload : uploads.entrySet()) {
+                            Part part = getUploadPart(fileItems, upload.getKey());
+                            upload.getValue().forEach(path -> MultipartUploads.mapUpload(graphQLRequest, path, part));
+                        }
+
+                        GraphQLSingleInvocationInput invocationInput = invocationInputFactory.create(graphQLRequest, request);
+                        invocationInput.getContext().setFiles(fileItems);
+                        return query(queryInvoker, graphQLObjectMapper, invocationInput, response);
+                    }
+                }
+            }
+        } else if (fileItems.containsKey("graphql")) {
+            final Optional<Part> graphqlItem = getFileItem(fileItems, "graphql");
+            if (graphqlItem.isPresent()) {
+                try (JsonParser parser = graphQLObjectMapper.createParser(graphqlItem.get().getInputStream())) {
+                    if (graphQLObjectMapper.isBatchedRequest(parser)) {
+                        GraphQLBatchedInvocationInput invocationInput = invocationInputFactory.create(graphQLObjectMapper.readBatchedGraphQLRequest(parser), request);
+                        invocationInput.getContext().setFiles(fileItems);
+                        return queryBatched(queryInvoker, graphQLObjectMapper, invocationInput, response);
+                    } else {
+                        GraphQLSingleInvocationInput invocationInput = invocationInputFactory.create(graphQLObjectMapper.readGraphQLRequest(parser), request);
+                        invocationInput.getContext().setFiles(fileItems);
+                        return query(queryInvoker, graphQLObjectMapper, invocationInput, response);
+                    }
+                }
+            }
+        } else if (fileItems.containsKey("query")) {
+            final Optional<Part> queryItem = getFileItem(fileItems, "query");
+            if (queryItem.isPresent()) {
+                // The part holds either the query text or a JSON batch, so it's read as text first.
+                String query = readPart(queryItem.get());
+
+                try (JsonParser parser = graphQLObjectMapper.createParser(query)) {
+                    if (isBatchedQuery(graphQLObjectMapper, parser)) {
+                        GraphQLBatchedInvocationInput invocationInput = invocationInputFactory.create(graphQLObjectMapper.readBatchedGraphQLRequest(parser), request);
+                        invocationInput.getContext().setFiles(fileItems);
+                        return queryBatched(queryInvoker, graphQLObjectMapper, invocationInput, response);
+                    }
+                }
+
+                Map<String, Object> variables = null;
+                final Optional<Part> variablesItem = getFileItem(fileItems, "variables");
+                if (variablesItem.isPresent()) {
+                    variables = graphQLObjectMapper.deserializeVariables(readPart(variablesItem.get()));
+                }
+
+                String operationName = null;
+                final Optional<Part> operationNameItem = getFileItem(fileItems, "operationName");
+                if (operationNameItem.isPresent()) {
+                    operationName = readPart(operationNameItem.get()).trim();
+                }
+
+                GraphQLSingleInvocationInput invocationInput = invocationInputFactory.create(new GraphQLRequest(query, variables, operationName), request);
+                invocationInput.getContext().setFiles(fileItems);
+                return query(queryInvoker, graphQLObjectMapper, invocationInput, response);
+            }
+        }
+
+        response.setStatus(STATUS_BAD_REQUEST);
+        log.info("Bad POST multipart request: no part named \"operations\", \"graphql\" or \"query\"");
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private Part getUploadPart(Map<String, List<Part>> fileItems, String name) {
+        return getFileItem(fileItems, name).orElseThrow(() -> new IllegalArgumentException("No part named \"" + name + "\" for the upload"));
+    }
+
+    private static String readPart(Part part) throws IOException {
+        try (InputStream inputStream = part.getInputStream()) {
+            return CharStreams.toString(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * The container enforces the limits of the multipart config it was given while it parses the request, this applies
+     * them to containers that parse multipart requests without one.
+     */
+    private boolean exceedsMultipartLimits(Collection<Part> parts) {
+        MultipartConfigElement multipartConfig = getMultipartConfig();
+        if (multipartConfig == null) {
+            return false;
+        }
+
+        long requestSize = 0;
+        for (Part part : parts) {
+            if (multipartConfig.getMaxFileSize() > 0 && part.getSize() > multipartConfig.getMaxFileSize()) {
+                return true;
+            }
+            requestSize += part.getSize();
+        }
+
+        return multipartConfig.getMaxRequestSize() > 0 && requestSize > multipartConfig.getMaxRequestSize();
     }
 
     private Optional<Part> getFileItem(Map<String, List<Part>> fileItems, String name) {
         return Optional.ofNullable(fileItems.get(name)).filter(list -> !list.isEmpty()).map(list -> list.get(0));
     }
 
-    private void query(GraphQLQueryInvoker queryInvoker, GraphQLObjectMapper graphQLObjectMapper, GraphQLSingleInvocationInput invocationInput, HttpServletResponse resp) throws IOException {
-        ExecutionResult result = queryInvoker.query(invocationInput);
+    /**
+     * In async servlet mode the query is executed with {@link GraphQLQueryInvoker#queryAsync(GraphQLSingleInvocationInput)}
+     * and the returned future completes once the result has been written, without blocking a thread in the meantime.
+     */
+    private CompletableFuture<Void> query(GraphQLQueryInvoker queryInvoker, GraphQLObjectMapper graphQLObjectMapper, GraphQLSingleInvocationInput invocationInput, HttpServletResponse resp) throws IOException {
+        return query(queryInvoker, graphQLObjectMapper, invocationInput, resp, null, null);
+    }
+
+    /**
+     * @param responseCache the cache to serve the response from and to store it in, only given for read-only queries
+     */
+    private CompletableFuture<Void> query(GraphQLQueryInvoker queryInvoker, GraphQLObjectMapper graphQLObjectMapper, GraphQLSingleInvocationInput invocationInput, HttpServletResponse resp, ResponseCache responseCache, ETagSupport eTagSupport) throws IOException {
+        GraphQLError persistedQueryError = resolvePersistedQuery(invocationInput.getRequest());
+        if (persistedQueryError != null) {
+            writeResult(graphQLObjectMapper, new ExecutionResultImpl(Collections.singletonList(persistedQueryError)), resp, null);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        IntrospectionCache introspectionCache = getIntrospectionCache();
+        if (introspectionCache != null && graphQLObjectMapper.getResponseFormat() == WireFormat.JSON && introspectionCache.isIntrospectionQuery(invocationInput.getRequest())) {
+            queryIntrospection(queryInvoker, graphQLObjectMapper, invocationInput, resp, introspectionCache, eTagSupport);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        if (responseCache != null) {
+            byte[] cachedResponse = responseCache.getResponse(invocationInput);
+            if (cachedResponse != null) {
+                writeResponse(graphQLObjectMapper, cachedResponse, null, resp, invocationInput, eTagSupport, true);
+                return CompletableFuture.completedFuture(null);
+            }
+        }
+
+        if (asyncServletMode) {
+            cancelOnAsyncTimeout(invocationInput.getContext());
+            return queryInvoker.queryAsync(invocationInput).thenAccept(result -> {
+                try {
+                    writeResult(graphQLObjectMapper, result, resp, invocationInput, responseCache, eTagSupport);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+
+        writeResult(graphQLObjectMapper, queryInvoker.query(invocationInput), resp, invocationInput, responseCache, eTagSupport);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Moves the deadline of the query forward once the container times out the async request, so that no more fields
+     * are fetched for a response nobody is waiting for.  The operations of a batch share their context, so this cuts
+     * short the operation running at the time as well as all that follow it.
+     */
+    private void cancelOnAsyncTimeout(GraphQLContext context) {
+        context.getHttpServletRequest()
+            .filter(ServletRequest::isAsyncStarted)
+            .ifPresent(request -> request.getAsyncContext().addListener(new AsyncListener() {
+                @Override
+                public void onTimeout(AsyncEvent event) {
+                    context.setDeadline(Instant.now());
+                }
+
+                @Override
+                public void onComplete(AsyncEvent event) {
+                }
+
+                @Override
+                public void onError(AsyncEvent event) {
+                }
+
+                @Override
+                public void onStartAsync(AsyncEvent event) {
+                }
+            }));
+    }
+
+    /**
+     * Writes the result with its exact {@code Content-Length}, serialized into pooled buffers first.  It is streamed
+     * instead if the response is buffered anyway, as in async servlet mode, if streamed responses are flushed
+     * explicitly, or if the responses to the operation have been large, and from the point on where it outgrows the
+     * buffers otherwise.
+     *
+     * @param query the query the result is for, or null if none was executed
+     */
+    private void writeResult(GraphQLObjectMapper graphQLObjectMapper, ExecutionResult result, HttpServletResponse resp, String query) throws IOException {
+        HashCode operation = ResponseSizeEstimator.operationKey(query);
+        resp.setContentType(graphQLObjectMapper.getResponseFormat().getContentType());
+        resp.setStatus(STATUS_OK);
+
+        if (asyncServletMode || graphQLObjectMapper.getFlushThreshold() > 0 || responseSizes.estimate(operation) > MAX_BUFFERED_RESPONSE_SIZE) {
+            CountingOutputStream outputStream = new CountingOutputStream(resp.getOutputStream());
+            try (JsonGenerator generator = graphQLObjectMapper.createJsonGenerator(outputStream)) {
+                graphQLObjectMapper.serializeResultAsJson(generator, result);
+            }
+            responseSizes.record(operation, (int) Math.min(Integer.MAX_VALUE, outputStream.getCount()));
+            return;
+        }
+
+        ChunkedBuffer body = new ChunkedBuffer(bufferPool);
+        try {
+            SpillingOutputStream outputStream = new SpillingOutputStream(body, MAX_BUFFERED_RESPONSE_SIZE, resp);
+            try (JsonGenerator generator = graphQLObjectMapper.createJsonGenerator(outputStream)) {
+                graphQLObjectMapper.serializeResultAsJson(generator, result);
+            }
+            responseSizes.record(operation, (int) Math.min(Integer.MAX_VALUE, outputStream.getCount()));
+            if (!outputStream.isSpilled()) {
+                resp.setContentLength(body.size());
+                body.writeTo(resp.getOutputStream());
+            }
+        } finally {
+            body.release();
+        }
+    }
+
+    private void writeResult(GraphQLObjectMapper graphQLObjectMapper, ExecutionResult result, HttpServletResponse resp, GraphQLSingleInvocationInput invocationInput, ResponseCache responseCache, ETagSupport eTagSupport) throws IOException {
+        boolean cacheable = result.getErrors().isEmpty();
+        if ((responseCache == null || !cacheable) && eTagSupport == null) {
+            writeResult(graphQLObjectMapper, result, resp, invocationInput.getRequest().getQuery());
+            return;
+        }
+
+        // Hashed for the ETag before anything is sent, so held in pooled buffers as a whole and copied only to be cached.
+        ChunkedBuffer body = new ChunkedBuffer(bufferPool);
+        try {
+            try (JsonGenerator generator = graphQLObjectMapper.createJsonGenerator(body)) {
+                graphQLObjectMapper.serializeResultAsJson(generator, result);
+            }
+            if (responseCache != null && cacheable) {
+                responseCache.putResponse(invocationInput, body.toByteArray());
+            }
+
+            Optional<HttpServletRequest> request = invocationInput.getContext().getHttpServletRequest();
+            if (eTagSupport != null && request.isPresent() && eTagSupport.checkQuery(request.get(), resp, body, cacheable)) {
+                return;
+            }
+
+            resp.setContentType(graphQLObjectMapper.getResponseFormat().getContentType());
+            resp.setStatus(STATUS_OK);
+            resp.setContentLength(body.size());
+            body.writeTo(resp.getOutputStream());
+        } finally {
+            body.release();
+        }
+    }
+
+    /**
+     * Runs the introspection query only if its response for the schema isn't cached yet.
+     */
+    private void queryIntrospection(GraphQLQueryInvoker queryInvoker, GraphQLObjectMapper graphQLObjectMapper, GraphQLSingleInvocationInput invocationInput, HttpServletResponse resp, IntrospectionCache introspectionCache, ETagSupport eTagSupport) throws IOException {
+        GraphQLSchema schema = invocationInput.getSchema();
+        byte[] response = introspectionCache.getResponse(schema);
+
+        if (response == null) {
+            ExecutionResult result = queryInvoker.query(invocationInput);
+            if (!result.getErrors().isEmpty()) {
+                writeResult(graphQLObjectMapper, result, resp, null);
+                return;
+            }
+
+            response = graphQLObjectMapper.serializeResultAsJsonBytes(result);
+            introspectionCache.putResponse(schema, response);
+        }
+
+        writeResponse(graphQLObjectMapper, response, () -> introspectionCache.getGzippedResponse(schema), resp, invocationInput, eTagSupport, true);
+    }
+
+    /**
+     * @param gzippedResponse supplies the response compressed with gzip if it's at hand, may be null
+     */
+    private void writeResponse(GraphQLObjectMapper graphQLObjectMapper, byte[] response, Supplier<byte[]> gzippedResponse, HttpServletResponse resp, GraphQLSingleInvocationInput invocationInput, ETagSupport eTagSupport, boolean cacheable) throws IOException {
+        Optional<HttpServletRequest> request = invocationInput.getContext().getHttpServletRequest();
+        if (eTagSupport != null && request.isPresent() && eTagSupport.checkQuery(request.get(), resp, response, cacheable)) {
+            return;
+        }
 
-        resp.setContentType(APPLICATION_JSON_UTF8);
+        resp.setContentType(graphQLObjectMapper.getResponseFormat().getContentType());
         resp.setStatus(STATUS_OK);
-        resp.getWriter().write(graphQLObjectMapper.serializeResultAsJson(result));
+
+        if (gzippedResponse != null && resp instanceof CompressingResponse && CompressingResponse.GZIP.equals(((CompressingResponse) resp).getEncoding())) {
+            byte[] gzipped = gzippedResponse.get();
+            if (gzipped != null) {
+                ((CompressingResponse) resp).writeEncoded(gzipped);
+                return;
+            }
+        }
+
+        resp.setContentLength(response.length);
+        resp.getOutputStream().write(response);
     }
 
-    private void queryBatched(GraphQLQueryInvoker queryInvoker, GraphQLObjectMapper graphQLObjectMapper, GraphQLBatchedInvocationInput invocationInput, HttpServletResponse resp) throws Exception {
-        resp.setContentType(APPLICATION_JSON_UTF8);
+    private CompletableFuture<Void> queryBatched(GraphQLQueryInvoker queryInvoker, GraphQLObjectMapper graphQLObjectMapper, GraphQLBatchedInvocationInput invocationInput, HttpServletResponse resp) throws Exception {
+        resp.setContentType(graphQLObjectMapper.getResponseFormat().getContentType());
         resp.setStatus(STATUS_OK);
 
-        Writer respWriter = resp.getWriter();
-        respWriter.write('[');
+        // Operations failing to resolve their persisted query are answered with the error in their place, the others
+        // are executed, just like in a pipelined batch.
+        Deque<Map.Entry<Integer, GraphQLError>> persistedQueryErrors = new ArrayDeque<>();
+        List<GraphQLRequest> resolvedRequests = new ArrayList<>();
+        for (GraphQLRequest graphQLRequest : invocationInput.getRequests()) {
+            GraphQLError error = resolvePersistedQuery(graphQLRequest);
+            if (error == null) {
+                resolvedRequests.add(graphQLRequest);
+            } else {
+                persistedQueryErrors.add(new AbstractMap.SimpleImmutableEntry<>(resolvedRequests.size(), error));
+            }
+        }
+
+        GraphQLBatchedInvocationInput resolvedInput = persistedQueryErrors.isEmpty() ? invocationInput
+            : new GraphQLBatchedInvocationInput(resolvedRequests, invocationInput.getSchema(), invocationInput.getContext(), invocationInput.getRoot());
+        if (asyncServletMode) {
+            cancelOnAsyncTimeout(invocationInput.getContext());
+        }
+
+        try (JsonGenerator generator = graphQLObjectMapper.createJsonGenerator(resp.getOutputStream())) {
+            generator.writeStartArray();
+
+            int[] executed = {0};
+            queryInvoker.query(resolvedInput, (result, hasNext) -> {
+                writeErrors(graphQLObjectMapper, generator, persistedQueryErrors, executed[0]);
+                graphQLObjectMapper.serializeResultAsJson(generator, result);
+                executed[0]++;
+            });
+            writeErrors(graphQLObjectMapper, generator, persistedQueryErrors, Integer.MAX_VALUE);
+
+            generator.writeEndArray();
+        }
+
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Executes a batch while it is still being read, writing every result as soon as it and all results before it are
+     * done.  An operation failing to resolve its persisted query is answered with the error in its place while the
+     * others still execute, as in {@link #queryBatched}.
+     */
+    private CompletableFuture<Void> queryPipelined(GraphQLQueryInvoker queryInvoker, GraphQLObjectMapper graphQLObjectMapper, GraphQLInvocationInputFactory invocationInputFactory, Iterator<GraphQLRequest> requests, HttpServletRequest request, HttpServletResponse resp) throws Exception {
+        // Errors are queued with the number of operations executed before them, which is where they go in the response.
+        Deque<Map.Entry<Integer, GraphQLError>> errors = new ArrayDeque<>();
+        Iterator<GraphQLRequest> resolvedRequests = new AbstractIterator<GraphQLRequest>() {
+            private int resolved;
+
+            @Override
+            protected GraphQLRequest computeNext() {
+                try {
+                    while (requests.hasNext()) {
+                        GraphQLRequest graphQLRequest = requests.next();
+                        GraphQLError error = resolvePersistedQuery(graphQLRequest);
+                        if (error == null) {
+                            resolved++;
+                            return graphQLRequest;
+                        }
 
-        queryInvoker.query(invocationInput, (result, hasNext) -> {
-            respWriter.write(graphQLObjectMapper.serializeResultAsJson(result));
-            if (hasNext) {
-                respWriter.write(',');
+                        errors.add(new AbstractMap.SimpleImmutableEntry<>(resolved, error));
+                    }
+                } catch (UncheckedIOException e) {
+                    // The response may be committed already, so the malformed operation is answered in its place and
+                    // the rest of the batch, which can't be read anymore, is left out.
+                    log.info("Bad POST request: reading the batch failed", e);
+                    errors.add(new AbstractMap.SimpleImmutableEntry<>(resolved, MALFORMED_BATCH_ERROR));
+                }
+
+                return endOfData();
             }
-        });
+        };
 
-        respWriter.write(']');
+        GraphQLBatchedInvocationInput invocationInput = invocationInputFactory.create(resolvedRequests, request);
+        if (asyncServletMode) {
+            cancelOnAsyncTimeout(invocationInput.getContext());
+        }
+
+        resp.setContentType(graphQLObjectMapper.getResponseFormat().getContentType());
+        resp.setStatus(STATUS_OK);
+
+        try (JsonGenerator generator = graphQLObjectMapper.createJsonGenerator(resp.getOutputStream())) {
+            generator.writeStartArray();
+
+            int[] executed = {0};
+            queryInvoker.query(invocationInput, (result, hasNext) -> {
+                writeErrors(graphQLObjectMapper, generator, errors, executed[0]);
+                graphQLObjectMapper.serializeResultAsJson(generator, result);
+                executed[0]++;
+            });
+            writeErrors(graphQLObjectMapper, generator, errors, Integer.MAX_VALUE);
+
+            generator.writeEndArray();
+        }
+
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Writes the queued errors of operations that weren't executed, up to the given number of executed operations.
+     */
+    private void writeErrors(GraphQLObjectMapper graphQLObjectMapper, JsonGenerator generator, Deque<Map.Entry<Integer, GraphQLError>> errors, int executed) throws IOException {
+        while (!errors.isEmpty() && errors.peek().getKey() <= executed) {
+            graphQLObjectMapper.serializeResultAsJson(generator, new ExecutionResultImpl(Collections.singletonList(errors.poll().getValue())));
+        }
+    }
+
+    /**
+     * Resolves a request that only carries the hash of its query through the {@link PersistedQueryCache}, and registers
+     * the query of a request that carries both.
+     *
+     * @return the error to respond with, or null if the request can be executed
+     */
+    private GraphQLError resolvePersistedQuery(GraphQLRequest graphQLRequest) {
+        String hash = getPersistedQueryHash(graphQLRequest);
+        if (hash == null) {
+            return null;
+        }
+
+        PersistedQueryCache persistedQueryCache = getPersistedQueryCache();
+        String query = graphQLRequest.getQuery();
+
+        if (persistedQueryCache == null) {
+            return query == null ? PersistedQueryError.NOT_SUPPORTED : null;
+        }
+
+        if (query == null) {
+            query = persistedQueryCache.getQuery(hash);
+            if (query == null) {
+                return PersistedQueryError.NOT_FOUND;
+            }
+
+            graphQLRequest.setQuery(query);
+            return null;
+        }
+
+        if (!Hashing.sha256().hashString(query, StandardCharsets.UTF_8).toString().equals(hash)) {
+            return PersistedQueryError.HASH_MISMATCH;
+        }
+
+        persistedQueryCache.putQuery(hash, query);
+        return null;
+    }
+
+    private static String getPersistedQueryHash(GraphQLRequest graphQLRequest) {
+        Map<String, Object> extensions = graphQLRequest.getExtensions();
+        if (extensions == null || !(extensions.get("persistedQuery") instanceof Map)) {
+            return null;
+        }
+
+        Object hash = ((Map<?, ?>) extensions.get("persistedQuery")).get("sha256Hash");
+        return hash instanceof String ? ((String) hash).toLowerCase(Locale.ROOT) : null;
     }
 
     private <R> List<R> runListeners(Function<? super GraphQLServletListener, R> action) {
@@ -314,61 +1073,30 @@ public abstract class AbstractGraphQLHttpServlet extends HttpServlet implements
         });
     }
 
-    private boolean isBatchedQuery(InputStream inputStream) throws IOException {
-        if (inputStream == null) {
-            return false;
-        }
-
-        ByteArrayOutputStream result = new ByteArrayOutputStream();
-        byte[] buffer = new byte[128];
-        int length;
-
-        inputStream.mark(0);
-        while ((length = inputStream.read(buffer)) != -1) {
-            result.write(buffer, 0, length);
-            String chunk = result.toString();
-            Boolean isArrayStart = isArrayStart(chunk);
-            if (isArrayStart != null) {
-                inputStream.reset();
-                return isArrayStart;
-            }
-        }
-
-        inputStream.reset();
-        return false;
-    }
-
-    private boolean isBatchedQuery(String query) {
-        if (query == null) {
+    /**
+     * Tells a JSON batch of requests from query text, which isn't JSON.  The parser is left at the start of the batch.
+     */
+    private static boolean isBatchedQuery(GraphQLObjectMapper graphQLObjectMapper, JsonParser parser) throws IOException {
+        try {
+            return graphQLObjectMapper.isBatchedRequest(parser);
+        } catch (JsonParseException e) {
             return false;
         }
-
-        Boolean isArrayStart = isArrayStart(query);
-        return isArrayStart != null && isArrayStart;
-    }
-
-    // return true if the first non whitespace character is the beginning of an array
-    private Boolean isArrayStart(String s) {
-        for (int i = 0; i < s.length(); i++) {
-            char ch = s.charAt(i);
-            if (!Character.isWhitespace(ch)) {
-                return ch == '[';
-            }
-        }
-
-        return null;
     }
 
     protected interface HttpRequestHandler extends BiConsumer<HttpServletRequest, HttpServletResponse> {
         @Override
         default void accept(HttpServletRequest request, HttpServletResponse response) {
             try {
-                handle(request, response);
+                handle(request, response).join();
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
         }
 
-        void handle(HttpServletRequest request, HttpServletResponse response) throws Exception;
+        /**
+         * @return a future that completes once the response has been written
+         */
+        CompletableFuture<Void> handle(HttpServletRequest request, HttpServletResponse response) throws Exception;
     }
 }
@@ -0,0 +1,128 @@
+package graphql.servlet;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import graphql.execution.preparsed.PreparsedDocumentEntry;
+import graphql.execution.preparsed.PreparsedDocumentProvider;
+import graphql.schema.GraphQLSchema;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A {@link PreparsedDocumentProvider} that keeps parsed and validated documents in a bounded LRU cache.
+ *
+ * The cache is bounded by the total length of the cached query strings rather than by the number of entries, so a few
+ * huge documents can't crowd out memory.  Since validation depends on the schema, every schema the document is
+ * executed against gets its own slot; {@link GraphQLQueryInvoker} takes care of that via {@link #forSchema(GraphQLSchema)}.
+ */
+public class CachingPreparsedDocumentProvider implements PreparsedDocumentProvider {
+
+    /**
+     * Total number of query characters kept in the cache by default.
+     */
+    public static final long DEFAULT_MAXIMUM_WEIGHT = 4 * 1024 * 1024;
+
+    private final Cache<DocumentKey, CachedDocument> cache;
+    private final LongAdder parseNanosSaved = new LongAdder();
+
+    public CachingPreparsedDocumentProvider() {
+        this(DEFAULT_MAXIMUM_WEIGHT);
+    }
+
+    public CachingPreparsedDocumentProvider(long maximumWeight) {
+        this.cache = CacheBuilder.newBuilder()
+            .maximumWeight(maximumWeight)
+            .weigher((DocumentKey key, CachedDocument document) -> key.query.length())
+            .recordStats()
+            .build();
+    }
+
+    @Override
+    public PreparsedDocumentEntry get(String query, Function<String, PreparsedDocumentEntry> computeFunction) {
+        return get(null, query, computeFunction);
+    }
+
+    /**
+     * @param schema the schema the documents will be validated against
+     * @return a view of this cache that keeps validation results separate for the given schema
+     */
+    public PreparsedDocumentProvider forSchema(GraphQLSchema schema) {
+        return (query, computeFunction) -> get(schema, query, computeFunction);
+    }
+
+    /**
+     * @return hit rate and eviction statistics of the cache
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /**
+     * @param unit the unit of the returned value
+     * @return the parse and validation time spent on cache misses that later cache hits didn't have to pay again
+     */
+    public long getParseTimeSaved(TimeUnit unit) {
+        return unit.convert(parseNanosSaved.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private PreparsedDocumentEntry get(GraphQLSchema schema, String query, Function<String, PreparsedDocumentEntry> computeFunction) {
+        DocumentKey key = new DocumentKey(schema, query);
+
+        CachedDocument document = cache.getIfPresent(key);
+        if (document != null) {
+            parseNanosSaved.add(document.parseNanos);
+            return document.entry;
+        }
+
+        long start = System.nanoTime();
+        PreparsedDocumentEntry entry = computeFunction.apply(query);
+        cache.put(key, new CachedDocument(entry, System.nanoTime() - start));
+
+        return entry;
+    }
+
+    private static final class DocumentKey {
+        private final GraphQLSchema schema;
+        private final String query;
+
+        DocumentKey(GraphQLSchema schema, String query) {
+            this.schema = schema;
+            this.query = query;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof DocumentKey)) {
+                return false;
+            }
+
+            DocumentKey that = (DocumentKey) o;
+            return schema == that.schema && query.equals(that.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(schema) + query.hashCode();
+        }
+    }
+
+    private static final class CachedDocument {
+        private final PreparsedDocumentEntry entry;
+        private final long parseNanos;
+
+        CachedDocument(PreparsedDocumentEntry entry, long parseNanos) {
+            this.entry = entry;
+            this.parseNanos = parseNanos;
+        }
+    }
+}
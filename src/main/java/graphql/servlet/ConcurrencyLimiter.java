@@ -0,0 +1,216 @@
+package graphql.servlet;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of requests executing at the same time and rejects the excess right away, with a limit that adapts
+ * to the observed latency (AIMD).
+ *
+ * Latency samples are smoothed with an exponentially weighted moving average, so that single slow requests don't count
+ * for much.  The latency without load is estimated from the minimum of the smoothed latency in a window of samples.
+ * The smoothed latency exceeding that by more than the tolerance means requests are queueing up somewhere, so the limit
+ * is cut by the backoff ratio, at most once per smoothing period to let the cut take effect.  Otherwise the limit grows
+ * by one as long as at least half of it is in use.
+ */
+public class ConcurrencyLimiter {
+
+    public static final int DEFAULT_INITIAL_LIMIT = 20;
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    public static final int DEFAULT_MAX_LIMIT = 1000;
+    public static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+    public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+    public static final int STATUS_TOO_MANY_REQUESTS = 429;
+
+    private static final int WINDOW_SAMPLES = 500;
+    private static final int SMOOTHING_SAMPLES = 20;
+    private static final double SMOOTHING = 2.0 / (SMOOTHING_SAMPLES + 1);
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double latencyTolerance;
+    private final double backoffRatio;
+    private final int rejectionStatus;
+    private final String retryAfter;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+
+    private volatile double limit;
+    private double smoothedLatencyNanos = -1;
+    private double minLatencyNanos = Double.MAX_VALUE;
+    private double windowMinLatencyNanos = Double.MAX_VALUE;
+    private int windowSamples;
+    private int settlingSamples = SMOOTHING_SAMPLES;
+
+    private ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double latencyTolerance, double backoffRatio, int rejectionStatus, Duration retryAfter) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.latencyTolerance = latencyTolerance;
+        this.backoffRatio = backoffRatio;
+        this.rejectionStatus = rejectionStatus;
+        this.retryAfter = Long.toString(Math.max(1, retryAfter.getSeconds()));
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    /**
+     * @return a permit that has to be released once the request is complete, or null if the request has to be rejected
+     */
+    public Permit tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                rejected.increment();
+                return null;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return new Permit();
+            }
+        }
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the status rejected requests are answered with
+     */
+    public int getRejectionStatus() {
+        return rejectionStatus;
+    }
+
+    /**
+     * @return the value of the {@code Retry-After} header of rejected requests
+     */
+    public String getRetryAfter() {
+        return retryAfter;
+    }
+
+    synchronized void onSample(long latencyNanos, int inFlightAtRelease) {
+        smoothedLatencyNanos = smoothedLatencyNanos < 0 ? latencyNanos : smoothedLatencyNanos + SMOOTHING * (latencyNanos - smoothedLatencyNanos);
+        if (settlingSamples > 0) {
+            // The average doesn't tell much yet, either right after the start or right after a cut.
+            settlingSamples--;
+            return;
+        }
+
+        minLatencyNanos = Math.min(minLatencyNanos, smoothedLatencyNanos);
+        windowMinLatencyNanos = Math.min(windowMinLatencyNanos, smoothedLatencyNanos);
+        if (++windowSamples == WINDOW_SAMPLES) {
+            // Lets the estimate rise again, e.g. after the backend got slower for good.
+            minLatencyNanos = windowMinLatencyNanos;
+            windowMinLatencyNanos = Double.MAX_VALUE;
+            windowSamples = 0;
+        }
+
+        double current = limit;
+        if (smoothedLatencyNanos > minLatencyNanos * latencyTolerance) {
+            limit = Math.max(minLimit, current * backoffRatio);
+            settlingSamples = SMOOTHING_SAMPLES;
+        } else if (inFlightAtRelease * 2 >= current) {
+            limit = Math.min(maxLimit, current + 1);
+        }
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Admission of a single request.
+     */
+    public final class Permit {
+        private final long startNanos = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit() {
+        }
+
+        /**
+         * Releases the permit, only the first call has an effect.
+         *
+         * @param sample whether the time since the permit was acquired is a latency sample, which it isn't e.g. for
+         *               requests that were never executed
+         */
+        public void release(boolean sample) {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+
+            int inFlightAtRelease = inFlight.getAndDecrement();
+            if (sample) {
+                onSample(System.nanoTime() - startNanos, inFlightAtRelease);
+            }
+        }
+    }
+
+    public static class Builder {
+        private int initialLimit = DEFAULT_INITIAL_LIMIT;
+        private int minLimit = DEFAULT_MIN_LIMIT;
+        private int maxLimit = DEFAULT_MAX_LIMIT;
+        private double latencyTolerance = DEFAULT_LATENCY_TOLERANCE;
+        private double backoffRatio = DEFAULT_BACKOFF_RATIO;
+        private int rejectionStatus = AbstractGraphQLHttpServlet.STATUS_SERVICE_UNAVAILABLE;
+        private Duration retryAfter = Duration.ofSeconds(1);
+
+        public Builder withInitialLimit(int initialLimit) {
+            this.initialLimit = initialLimit;
+            return this;
+        }
+
+        public Builder withMinLimit(int minLimit) {
+            this.minLimit = minLimit;
+            return this;
+        }
+
+        public Builder withMaxLimit(int maxLimit) {
+            this.maxLimit = maxLimit;
+            return this;
+        }
+
+        /**
+         * @param latencyTolerance how many times the latency without load the smoothed latency may take before the limit
+         *                         is cut
+         */
+        public Builder withLatencyTolerance(double latencyTolerance) {
+            this.latencyTolerance = latencyTolerance;
+            return this;
+        }
+
+        /**
+         * @param backoffRatio the factor the limit is multiplied with when latency exceeds the tolerance
+         */
+        public Builder withBackoffRatio(double backoffRatio) {
+            this.backoffRatio = backoffRatio;
+            return this;
+        }
+
+        /**
+         * @param rejectionStatus 503 (the default) or {@link #STATUS_TOO_MANY_REQUESTS}
+         */
+        public Builder withRejectionStatus(int rejectionStatus) {
+            this.rejectionStatus = rejectionStatus;
+            return this;
+        }
+
+        public Builder withRetryAfter(Duration retryAfter) {
+            this.retryAfter = retryAfter;
+            return this;
+        }
+
+        public ConcurrencyLimiter build() {
+            return new ConcurrencyLimiter(initialLimit, minLimit, maxLimit, latencyTolerance, backoffRatio, rejectionStatus, retryAfter);
+        }
+    }
+}
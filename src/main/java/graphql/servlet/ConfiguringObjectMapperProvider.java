@@ -1,5 +1,6 @@
 package graphql.servlet;
 
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.databind.InjectableValues;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
@@ -19,12 +20,25 @@ public class ConfiguringObjectMapperProvider implements ObjectMapperProvider {
 
   @Override
   public ObjectMapper provide() {
-    ObjectMapper mapper = new ObjectMapper().disable(
-      SerializationFeature.FAIL_ON_EMPTY_BEANS).registerModule(new Jdk8Module());
+    ObjectMapper mapper = configure(new ObjectMapper());
+    return withInjectedMapper(mapper, mapper);
+  }
+
+  @Override
+  public ObjectMapper provide(JsonFactory jsonFactory) {
+    // Variables sent as a string are JSON text whatever the format of the request, so they're read with a JSON mapper.
+    return withInjectedMapper(configure(new ObjectMapper(jsonFactory)), provide());
+  }
+
+  private ObjectMapper configure(ObjectMapper mapper) {
+    mapper.disable(SerializationFeature.FAIL_ON_EMPTY_BEANS).registerModule(new Jdk8Module());
     objectMapperConfigurer.configure(mapper);
+    return mapper;
+  }
 
+  private static ObjectMapper withInjectedMapper(ObjectMapper mapper, ObjectMapper injectedMapper) {
     InjectableValues.Std injectableValues = new InjectableValues.Std();
-    injectableValues.addValue(ObjectMapper.class, mapper);
+    injectableValues.addValue(ObjectMapper.class, injectedMapper);
     mapper.setInjectableValues(injectableValues);
 
     return mapper;
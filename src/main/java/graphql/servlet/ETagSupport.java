@@ -0,0 +1,139 @@
+package graphql.servlet;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import graphql.schema.GraphQLSchema;
+import graphql.servlet.internal.ChunkedBuffer;
+import graphql.servlet.internal.CompressingResponse;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adds ETags to the responses of GET queries and {@code /schema.json}, and answers requests whose
+ * {@code If-None-Match} header still matches with 304 Not Modified.
+ *
+ * Query responses get a strong ETag hashed from the serialized response, so they are still executed but not sent
+ * again.  {@code /schema.json} gets an ETag derived from the identity of the schema instead, so a match skips the
+ * introspection query entirely; a rebuilt schema is a new instance and therefore gets a new ETag.
+ */
+public class ETagSupport {
+
+    public static final int STATUS_NOT_MODIFIED = 304;
+
+    private final String queryCacheControl;
+    private final String schemaCacheControl;
+    private final String instanceId = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private final AtomicLong schemaVersions = new AtomicLong();
+    private final Cache<GraphQLSchema, String> schemaETags = CacheBuilder.newBuilder().weakKeys().build();
+
+    public ETagSupport() {
+        this(null, null);
+    }
+
+    /**
+     * @param queryCacheControl  the {@code Cache-Control} header of responses to GET queries without errors, or null
+     * @param schemaCacheControl the {@code Cache-Control} header of {@code /schema.json} responses, or null
+     */
+    public ETagSupport(String queryCacheControl, String schemaCacheControl) {
+        this.queryCacheControl = queryCacheControl;
+        this.schemaCacheControl = schemaCacheControl;
+    }
+
+    /**
+     * Sets the headers of a query response and answers it with 304 if the client already has it.
+     *
+     * @param cacheable false if the response must not be cached, e.g. because it contains errors
+     * @return true if the response is complete and the body must not be written
+     */
+    boolean checkQuery(HttpServletRequest request, HttpServletResponse response, byte[] body, boolean cacheable) {
+        return checkQuery(request, response, Hashing.murmur3_128().hashBytes(body), cacheable);
+    }
+
+    /**
+     * Like {@link #checkQuery(HttpServletRequest, HttpServletResponse, byte[], boolean)}, for a response still held in
+     * pooled buffers.
+     */
+    boolean checkQuery(HttpServletRequest request, HttpServletResponse response, ChunkedBuffer body, boolean cacheable) throws IOException {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        body.writeTo(Funnels.asOutputStream(hasher));
+        return checkQuery(request, response, hasher.hash(), cacheable);
+    }
+
+    private boolean checkQuery(HttpServletRequest request, HttpServletResponse response, HashCode bodyHash, boolean cacheable) {
+        return check(request, response, '"' + bodyHash.toString() + '"', cacheable ? queryCacheControl : null);
+    }
+
+    /**
+     * Sets the headers of a {@code /schema.json} response and answers it with 304 if the client already has it.
+     *
+     * @return true if the response is complete and the introspection query doesn't have to be executed
+     */
+    boolean checkSchema(HttpServletRequest request, HttpServletResponse response, GraphQLSchema schema) {
+        String eTag;
+        try {
+            eTag = schemaETags.get(schema, () -> "\"schema-" + instanceId + "-" + schemaVersions.incrementAndGet() + '"');
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        return check(request, response, eTag, schemaCacheControl);
+    }
+
+    private boolean check(HttpServletRequest request, HttpServletResponse response, String eTag, String cacheControl) {
+        response.setHeader("ETag", eTag);
+        if (cacheControl != null) {
+            response.setHeader("Cache-Control", cacheControl);
+        }
+
+        if (matches(request.getHeader("If-None-Match"), eTag)) {
+            response.setStatus(STATUS_NOT_MODIFIED);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Uses the weak comparison If-None-Match calls for.  The suffix that compression appends to the ETag is ignored,
+     * since the client caches the decoded response either way.
+     */
+    static boolean matches(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        String opaqueTag = eTag.substring(1, eTag.length() - 1);
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*")) {
+                return true;
+            }
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.length() < 2 || candidate.charAt(0) != '"' || candidate.charAt(candidate.length() - 1) != '"') {
+                continue;
+            }
+
+            candidate = candidate.substring(1, candidate.length() - 1);
+            if (candidate.equals(opaqueTag) || candidate.startsWith(opaqueTag + "-") && isCompressionSuffix(candidate.substring(opaqueTag.length() + 1))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isCompressionSuffix(String suffix) {
+        return suffix.equals(CompressingResponse.GZIP) || suffix.equals(CompressingResponse.DEFLATE);
+    }
+}
@@ -0,0 +1,121 @@
+package graphql.servlet;
+
+import graphql.ExecutionResult;
+import graphql.execution.DataFetcherResult;
+import graphql.execution.instrumentation.InstrumentationContext;
+import graphql.execution.instrumentation.InstrumentationState;
+import graphql.execution.instrumentation.SimpleInstrumentation;
+import graphql.execution.instrumentation.SimpleInstrumentationContext;
+import graphql.execution.instrumentation.parameters.InstrumentationExecutionParameters;
+import graphql.execution.instrumentation.parameters.InstrumentationFieldFetchParameters;
+import graphql.schema.DataFetcher;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounds the time a query may spend fetching fields.
+ *
+ * Every execution gets a deadline of its own when it begins, so the operations of a batch, which share their
+ * {@link GraphQLContext}, don't inherit each other's: the timeout configured for the operation name, or the default
+ * timeout, and the value of the timeout header (in milliseconds) if that's shorter.  Once it has passed, or the deadline
+ * set on the {@code GraphQLContext} has, the remaining fields aren't fetched anymore; they resolve to {@code null} and a
+ * single {@link ExecutionTimeoutError} is added to the partial result.
+ */
+public class ExecutionDeadlineInstrumentation extends SimpleInstrumentation {
+
+    private final Duration defaultTimeout;
+    private final Map<String, Duration> operationTimeouts;
+    private final String timeoutHeader;
+
+    /**
+     * @param defaultTimeout the timeout of every operation, or null for none
+     */
+    public ExecutionDeadlineInstrumentation(Duration defaultTimeout) {
+        this(defaultTimeout, Collections.emptyMap(), null);
+    }
+
+    /**
+     * @param defaultTimeout    the timeout of operations without a timeout of their own, or null for none
+     * @param operationTimeouts timeouts by operation name
+     * @param timeoutHeader     the request header clients may use to ask for a shorter timeout, or null
+     */
+    public ExecutionDeadlineInstrumentation(Duration defaultTimeout, Map<String, Duration> operationTimeouts, String timeoutHeader) {
+        this.defaultTimeout = defaultTimeout;
+        this.operationTimeouts = new HashMap<>(operationTimeouts);
+        this.timeoutHeader = timeoutHeader;
+    }
+
+    @Override
+    public InstrumentationState createState() {
+        return new DeadlineState();
+    }
+
+    @Override
+    public InstrumentationContext<ExecutionResult> beginExecution(InstrumentationExecutionParameters parameters) {
+        Duration timeout = getTimeout(parameters.getOperation(), parameters.getContext());
+        if (timeout != null) {
+            DeadlineState state = parameters.getInstrumentationState();
+            state.deadline = Instant.now().plus(timeout);
+        }
+
+        return new SimpleInstrumentationContext<>();
+    }
+
+    @Override
+    public DataFetcher<?> instrumentDataFetcher(DataFetcher<?> dataFetcher, InstrumentationFieldFetchParameters parameters) {
+        Object context = parameters.getEnvironment().getContext();
+        GraphQLContext graphQLContext = context instanceof GraphQLContext ? (GraphQLContext) context : null;
+        DeadlineState state = parameters.getInstrumentationState();
+        return environment -> {
+            if (!state.isDeadlineExceeded() && (graphQLContext == null || !graphQLContext.isDeadlineExceeded())) {
+                return dataFetcher.get(environment);
+            }
+
+            return new DataFetcherResult<>(null, state.timedOut.compareAndSet(false, true) ? Collections.singletonList(ExecutionTimeoutError.INSTANCE) : Collections.emptyList());
+        };
+    }
+
+    private Duration getTimeout(String operationName, Object context) {
+        Duration timeout = operationName != null ? operationTimeouts.getOrDefault(operationName, defaultTimeout) : defaultTimeout;
+
+        Duration requested = getRequestedTimeout(context);
+        if (requested != null && (timeout == null || requested.compareTo(timeout) < 0)) {
+            return requested;
+        }
+
+        return timeout;
+    }
+
+    private Duration getRequestedTimeout(Object context) {
+        if (timeoutHeader == null || !(context instanceof GraphQLContext)) {
+            return null;
+        }
+
+        String header = ((GraphQLContext) context).getHttpServletRequest().map(request -> request.getHeader(timeoutHeader)).orElse(null);
+        if (header == null) {
+            return null;
+        }
+
+        try {
+            long millis = Long.parseLong(header.trim());
+            return millis >= 0 ? Duration.ofMillis(millis) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static class DeadlineState implements InstrumentationState {
+        private final AtomicBoolean timedOut = new AtomicBoolean();
+        private volatile Instant deadline;
+
+        boolean isDeadlineExceeded() {
+            Instant deadline = this.deadline;
+            return deadline != null && !Instant.now().isBefore(deadline);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package graphql.servlet;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Reported once per execution when {@link ExecutionDeadlineInstrumentation} stopped fetching fields because the
+ * deadline passed.
+ */
+public class ExecutionTimeoutError extends GenericGraphQLError {
+
+    public static final ExecutionTimeoutError INSTANCE = new ExecutionTimeoutError();
+
+    private static final Map<String, Object> EXTENSIONS = Collections.singletonMap("code", "EXECUTION_TIMEOUT");
+
+    private ExecutionTimeoutError() {
+        super("Execution deadline exceeded, the result is incomplete");
+    }
+
+    @Override
+    public Map<String, Object> getExtensions() {
+        return EXTENSIONS;
+    }
+}
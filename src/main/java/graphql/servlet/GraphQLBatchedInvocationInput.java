@@ -1,5 +1,7 @@
 package graphql.servlet;
 
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import graphql.ExecutionInput;
 import graphql.execution.ExecutionContext;
 import graphql.schema.GraphQLSchema;
@@ -7,6 +9,7 @@ import graphql.servlet.internal.GraphQLRequest;
 
 import javax.security.auth.Subject;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -15,16 +18,53 @@ import java.util.stream.Collectors;
  * @author Andrew Potter
  */
 public class GraphQLBatchedInvocationInput extends GraphQLInvocationInput {
-    private final List<GraphQLRequest> requests;
+    private Iterator<GraphQLRequest> pipelinedRequests;
+    private List<GraphQLRequest> requests;
 
     public GraphQLBatchedInvocationInput(List<GraphQLRequest> requests, GraphQLSchema schema, GraphQLContext context, Object root) {
         super(schema, context, root);
         this.requests = Collections.unmodifiableList(requests);
     }
 
+    /**
+     * Creates a pipelined batch, whose requests are only taken from the iterator as the batch executes.
+     */
+    public GraphQLBatchedInvocationInput(Iterator<GraphQLRequest> requests, GraphQLSchema schema, GraphQLContext context, Object root) {
+        super(schema, context, root);
+        this.pipelinedRequests = requests;
+    }
+
+    /**
+     * @return true if the requests haven't been read up front
+     */
+    public boolean isPipelined() {
+        return pipelinedRequests != null;
+    }
+
+    /**
+     * Returns all requests of the batch.  For a pipelined batch this reads all remaining requests up front and the batch
+     * isn't pipelined anymore.
+     */
+    public List<GraphQLRequest> getRequests() {
+        if (pipelinedRequests != null) {
+            requests = Collections.unmodifiableList(Lists.newArrayList(pipelinedRequests));
+            pipelinedRequests = null;
+        }
+
+        return requests;
+    }
+
     public List<ExecutionInput> getExecutionInputs() {
-        return requests.stream()
+        return getRequests().stream()
             .map(this::createExecutionInput)
             .collect(Collectors.toList());
     }
+
+    /**
+     * @return the execution inputs of the batch, created one at a time as the iterator advances
+     */
+    public Iterator<ExecutionInput> getExecutionInputIterator() {
+        Iterator<GraphQLRequest> iterator = pipelinedRequests != null ? pipelinedRequests : requests.iterator();
+        return Iterators.transform(iterator, this::createExecutionInput);
+    }
 }
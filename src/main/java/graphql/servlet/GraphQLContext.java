@@ -6,6 +6,7 @@ import javax.security.auth.Subject;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.Part;
 import javax.websocket.server.HandshakeRequest;
+import java.time.Instant;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -19,6 +20,8 @@ public class GraphQLContext {
 
     private DataLoaderRegistry dataLoaderRegistry;
 
+    private volatile Instant deadline;
+
     public GraphQLContext(HttpServletRequest httpServletRequest, HandshakeRequest handshakeRequest, Subject subject) {
         this.httpServletRequest = httpServletRequest;
         this.handshakeRequest = handshakeRequest;
@@ -64,4 +67,25 @@ public class GraphQLContext {
     public void setDataLoaderRegistry(DataLoaderRegistry dataLoaderRegistry) {
         this.dataLoaderRegistry = dataLoaderRegistry;
     }
+
+    public Optional<Instant> getDeadline() {
+        return Optional.ofNullable(deadline);
+    }
+
+    /**
+     * Sets the point in time after which no further fields are fetched for any operation of the request, on top of the
+     * deadline {@link ExecutionDeadlineInstrumentation} sets for every operation.  May be moved forward while the query
+     * is executing to cancel it.
+     */
+    public void setDeadline(Instant deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Long running data fetchers can poll this to give up early once the request is cancelled.
+     */
+    public boolean isDeadlineExceeded() {
+        Instant deadline = this.deadline;
+        return deadline != null && !Instant.now().isBefore(deadline);
+    }
 }
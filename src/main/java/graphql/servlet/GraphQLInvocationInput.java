@@ -5,6 +5,7 @@ import graphql.schema.GraphQLSchema;
 import graphql.servlet.internal.GraphQLRequest;
 
 import javax.security.auth.Subject;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 
@@ -44,7 +45,7 @@ public abstract class GraphQLInvocationInput {
             graphQLRequest.getOperationName(),
             context,
             root,
-            graphQLRequest.getVariables()
+            graphQLRequest.getVariables() != null ? graphQLRequest.getVariables() : Collections.emptyMap()
         );
     }
 }
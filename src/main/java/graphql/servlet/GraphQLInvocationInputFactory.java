@@ -5,6 +5,7 @@ import graphql.servlet.internal.GraphQLRequest;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.websocket.server.HandshakeRequest;
+import java.util.Iterator;
 import java.util.List;
 import java.util.function.Supplier;
 
@@ -34,6 +35,18 @@ public class GraphQLInvocationInputFactory {
         return create(graphQLRequests, request, false);
     }
 
+    /**
+     * Creates a pipelined batch whose requests are read from the iterator while the batch executes.
+     */
+    public GraphQLBatchedInvocationInput create(Iterator<GraphQLRequest> graphQLRequests, HttpServletRequest request) {
+        return new GraphQLBatchedInvocationInput(
+            graphQLRequests,
+            schemaProviderSupplier.get().getSchema(request),
+            contextBuilderSupplier.get().build(request),
+            rootObjectBuilderSupplier.get().build(request)
+        );
+    }
+
     public GraphQLSingleInvocationInput createReadOnly(GraphQLRequest graphQLRequest, HttpServletRequest request) {
         return create(graphQLRequest, request, true);
     }
@@ -4,4 +4,32 @@ public interface GraphQLMBean {
     String[] getQueries();
     String[] getMutations();
     String executeQuery(String query);
+
+    default int getAsyncActiveWorkers() {
+        return 0;
+    }
+
+    default long getAsyncRequestsExecuted() {
+        return 0;
+    }
+
+    default long getAsyncRequestsRejected() {
+        return 0;
+    }
+
+    default long getAsyncQueueWaitMillis() {
+        return 0;
+    }
+
+    default int getConcurrencyLimit() {
+        return 0;
+    }
+
+    default int getConcurrencyInFlight() {
+        return 0;
+    }
+
+    default long getConcurrencyRejected() {
+        return 0;
+    }
 }
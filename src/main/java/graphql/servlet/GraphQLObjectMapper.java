@@ -1,63 +1,143 @@
 package graphql.servlet;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.InjectableValues;
-import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
 import graphql.ExecutionResult;
 import graphql.ExecutionResultImpl;
 import graphql.GraphQLError;
+import graphql.servlet.internal.ExecutionResultSerializer;
 import graphql.servlet.internal.GraphQLRequest;
 import graphql.servlet.internal.VariablesDeserializer;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 
 /**
  * @author Andrew Potter
  */
 public class GraphQLObjectMapper {
-    private final ObjectMapperProvider objectMapperProvider;
-    private final Supplier<GraphQLErrorHandler> graphQLErrorHandlerSupplier;
+    private static final TypeReference<Map<String, List<String>>> MULTIPART_MAP_TYPE = new TypeReference<Map<String, List<String>>>() {};
 
-    private volatile ObjectMapper mapper;
+    private final Supplier<GraphQLErrorHandler> graphQLErrorHandlerSupplier;
+    private final int flushThreshold;
+    private final ExecutionResultSerializer resultSerializer;
+    private final VariablesDeserializer.Limits variablesLimits;
+    private final Mappers mappers;
+    private final WireFormat requestFormat;
+    private final WireFormat responseFormat;
 
     protected GraphQLObjectMapper(ObjectMapperProvider objectMapperProvider, Supplier<GraphQLErrorHandler> graphQLErrorHandlerSupplier) {
-        this.objectMapperProvider = objectMapperProvider;
+        this(objectMapperProvider, graphQLErrorHandlerSupplier, 0);
+    }
+
+    protected GraphQLObjectMapper(ObjectMapperProvider objectMapperProvider, Supplier<GraphQLErrorHandler> graphQLErrorHandlerSupplier, int flushThreshold) {
+        this(objectMapperProvider, graphQLErrorHandlerSupplier, flushThreshold, false);
+    }
+
+    protected GraphQLObjectMapper(ObjectMapperProvider objectMapperProvider, Supplier<GraphQLErrorHandler> graphQLErrorHandlerSupplier, int flushThreshold, boolean resultTreeWriter) {
+        this(objectMapperProvider, graphQLErrorHandlerSupplier, flushThreshold, resultTreeWriter, VariablesDeserializer.Limits.NONE);
+    }
+
+    protected GraphQLObjectMapper(ObjectMapperProvider objectMapperProvider, Supplier<GraphQLErrorHandler> graphQLErrorHandlerSupplier, int flushThreshold, boolean resultTreeWriter, VariablesDeserializer.Limits variablesLimits) {
         this.graphQLErrorHandlerSupplier = graphQLErrorHandlerSupplier;
+        this.flushThreshold = flushThreshold;
+        this.resultSerializer = new ExecutionResultSerializer(graphQLErrorHandlerSupplier, resultTreeWriter);
+        this.variablesLimits = variablesLimits;
+        this.mappers = new Mappers(objectMapperProvider);
+        this.requestFormat = WireFormat.JSON;
+        this.responseFormat = WireFormat.JSON;
     }
 
-    // Double-check idiom for lazy initialization of instance fields.
+    private GraphQLObjectMapper(GraphQLObjectMapper graphQLObjectMapper, WireFormat requestFormat, WireFormat responseFormat) {
+        this.graphQLErrorHandlerSupplier = graphQLObjectMapper.graphQLErrorHandlerSupplier;
+        this.flushThreshold = graphQLObjectMapper.flushThreshold;
+        this.resultSerializer = graphQLObjectMapper.resultSerializer;
+        this.variablesLimits = graphQLObjectMapper.variablesLimits;
+        this.mappers = graphQLObjectMapper.mappers;
+        this.requestFormat = requestFormat;
+        this.responseFormat = responseFormat;
+    }
+
+    /**
+     * @return the mapper for JSON, which is also used for everything that is text, e.g. variables in query parameters
+     */
     public ObjectMapper getJacksonMapper() {
-        ObjectMapper result = mapper;
-        if (result == null) { // First check (no locking)
-            synchronized(this) {
-                result = mapper;
-                if (result == null) // Second check (with locking)
-                    mapper = result = objectMapperProvider.provide();
-            }
+        return getJacksonMapper(WireFormat.JSON);
+    }
+
+    /**
+     * @return the mapper for the format, or null if the {@link ObjectMapperProvider} doesn't support it
+     */
+    public ObjectMapper getJacksonMapper(WireFormat format) {
+        return mappers.get(format);
+    }
+
+    /**
+     * Returns a mapper that reads request bodies and writes responses in the given formats, falling back to JSON for
+     * formats the {@link ObjectMapperProvider} doesn't support.  Everything else is still read as JSON.
+     */
+    public GraphQLObjectMapper forFormats(WireFormat requestFormat, WireFormat responseFormat) {
+        WireFormat request = isSupported(requestFormat) ? requestFormat : WireFormat.JSON;
+        WireFormat response = isSupported(responseFormat) ? responseFormat : WireFormat.JSON;
+        if (request == this.requestFormat && response == this.responseFormat) {
+            return this;
         }
+        return new GraphQLObjectMapper(this, request, response);
+    }
 
-        return result;
+    public WireFormat getResponseFormat() {
+        return responseFormat;
     }
 
     /**
-     * @return an {@link ObjectReader} for deserializing {@link GraphQLRequest}
+     * @return the number of bytes after which streamed responses are flushed, 0 if flushing is left to the container
+     */
+    public int getFlushThreshold() {
+        return flushThreshold;
+    }
+
+    private boolean isSupported(WireFormat format) {
+        return format == WireFormat.JSON || getJacksonMapper(format) != null;
+    }
+
+    /**
+     * @return an {@link ObjectReader} for deserializing {@link GraphQLRequest}, the same instance every time
      */
     public ObjectReader getGraphQLRequestMapper() {
-        return getJacksonMapper().reader().forType(GraphQLRequest.class);
+        ObjectReader reader = mappers.requestReader;
+        if (reader == null) {
+            reader = getJacksonMapper().readerFor(GraphQLRequest.class);
+            mappers.requestReader = reader = variablesLimits.isLimited() ? reader.withAttribute(VariablesDeserializer.Limits.class, variablesLimits) : reader;
+        }
+        return reader;
     }
 
     public GraphQLRequest readGraphQLRequest(InputStream inputStream) throws IOException {
-        return getGraphQLRequestMapper().readValue(inputStream);
+        try (JsonParser parser = createParser(inputStream)) {
+            return readGraphQLRequest(parser);
+        }
     }
 
     public GraphQLRequest readGraphQLRequest(String text) throws IOException {
@@ -65,33 +145,153 @@ public class GraphQLObjectMapper {
     }
 
     public List<GraphQLRequest> readBatchedGraphQLRequest(InputStream inputStream) throws IOException {
-        MappingIterator<GraphQLRequest> iterator = getGraphQLRequestMapper().readValues(inputStream);
-        List<GraphQLRequest> requests = new ArrayList<>();
+        try (JsonParser parser = createParser(inputStream)) {
+            parser.nextToken();
+            return readBatchedGraphQLRequest(parser);
+        }
+    }
 
-        while (iterator.hasNext()) {
-            requests.add(iterator.next());
+    public List<GraphQLRequest> readBatchedGraphQLRequest(String query) throws IOException {
+        try (JsonParser parser = createParser(query)) {
+            parser.nextToken();
+            return readBatchedGraphQLRequest(parser);
         }
+    }
 
-        return requests;
+    /**
+     * Creates a parser for a request body in the request format.
+     */
+    public JsonParser createParser(InputStream inputStream) throws IOException {
+        return getJacksonMapper(requestFormat).getFactory().createParser(inputStream);
     }
 
-    public List<GraphQLRequest> readBatchedGraphQLRequest(String query) throws IOException {
-        MappingIterator<GraphQLRequest> iterator = getGraphQLRequestMapper().readValues(query);
-        List<GraphQLRequest> requests = new ArrayList<>();
+    public JsonParser createParser(String text) throws IOException {
+        return getJacksonMapper().getFactory().createParser(text);
+    }
+
+    /**
+     * Moves the parser to the first token, which tells a batch from a single request.  The parser is left there for
+     * {@link #readGraphQLRequest(JsonParser)} or {@link #readBatchedGraphQLRequest(JsonParser)} to continue, so the
+     * input is only read once.
+     *
+     * @return true if the input is a batch of requests
+     */
+    public boolean isBatchedRequest(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken() != null ? parser.currentToken() : parser.nextToken();
+        return token == JsonToken.START_ARRAY;
+    }
 
-        while (iterator.hasNext()) {
-            requests.add(iterator.next());
+    /**
+     * Reads a request, starting at the current token of the parser if there is one.
+     */
+    public GraphQLRequest readGraphQLRequest(JsonParser parser) throws IOException {
+        return getGraphQLRequestMapper().readValue(parser);
+    }
+
+    /**
+     * Reads a batch of requests, the parser has to be at the start of the array.
+     */
+    public List<GraphQLRequest> readBatchedGraphQLRequest(JsonParser parser) throws IOException {
+        try {
+            return Lists.newArrayList(readBatchedGraphQLRequestLazily(parser));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
+    }
 
-        return requests;
+    /**
+     * Reads a batch of requests one at a time as the returned iterator advances, the parser has to be at the start of
+     * the array.  Errors reading the input are thrown from the iterator as {@link UncheckedIOException}s.
+     */
+    public Iterator<GraphQLRequest> readBatchedGraphQLRequestLazily(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            throw JsonMappingException.from(parser, "Expected an array of requests");
+        }
+
+        ObjectReader reader = getGraphQLRequestMapper();
+        return new AbstractIterator<GraphQLRequest>() {
+            @Override
+            protected GraphQLRequest computeNext() {
+                try {
+                    JsonToken token = parser.nextToken();
+                    if (token == JsonToken.END_ARRAY) {
+                        return endOfData();
+                    }
+                    if (token == null) {
+                        throw JsonMappingException.from(parser, "Unexpected end of the array of requests");
+                    }
+
+                    return reader.readValue(parser);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
     }
 
     public String serializeResultAsJson(ExecutionResult executionResult) {
-        try {
-            return getJacksonMapper().writeValueAsString(createResultFromExecutionResult(executionResult));
-        } catch (JsonProcessingException e) {
+        ObjectMapper mapper = getJacksonMapper();
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = configureGenerator(mapper, mapper.getFactory().createGenerator(writer))) {
+            resultSerializer.serialize(executionResult, generator, mapper.getSerializerProviderInstance());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * @return the result in the response format
+     */
+    public byte[] serializeResultAsJsonBytes(ExecutionResult executionResult) {
+        ObjectMapper mapper = getJacksonMapper(responseFormat);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (JsonGenerator generator = configureGenerator(mapper, mapper.getFactory().createGenerator(outputStream, JsonEncoding.UTF8))) {
+            resultSerializer.serialize(executionResult, generator, mapper.getSerializerProviderInstance());
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Creates a generator for the response format that writes straight to the given stream, so a response never has to
+     * be held in memory as a whole.  Closing the generator writes out what it buffered but neither flushes nor closes the
+     * stream, that's up to the flush threshold and the servlet container.  Nor does it close open arrays and objects, so
+     * a response cut short by an error can't pass as complete.
+     */
+    public JsonGenerator createJsonGenerator(OutputStream outputStream) throws IOException {
+        OutputStream target = flushThreshold > 0 ? new ThresholdFlushingOutputStream(outputStream, flushThreshold) : outputStream;
+        ObjectMapper mapper = getJacksonMapper(responseFormat);
+        return configureGenerator(mapper, mapper.getFactory().createGenerator(target, JsonEncoding.UTF8))
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT)
+            .disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+    }
+
+    /**
+     * Results are serialized without going through an {@link com.fasterxml.jackson.databind.ObjectWriter}, so the
+     * output settings it would apply are applied here.
+     */
+    private static JsonGenerator configureGenerator(ObjectMapper mapper, JsonGenerator generator) {
+        if (mapper.isEnabled(SerializationFeature.INDENT_OUTPUT) && generator.getPrettyPrinter() == null) {
+            generator.useDefaultPrettyPrinter();
+        }
+        return generator;
+    }
+
+    /**
+     * Writes the result as the next value of the generator, e.g. as the next element of a batched response or as the
+     * payload of a subscription message.
+     */
+    public void serializeResultAsJson(JsonGenerator generator, ExecutionResult executionResult) throws IOException {
+        resultSerializer.serialize(executionResult, generator, getJacksonMapper(responseFormat).getSerializerProviderInstance());
+
+        // The generator buffers up to 8 KB itself, so it hands every result on for the stream to count against the
+        // threshold.
+        if (generator.getOutputTarget() instanceof ThresholdFlushingOutputStream) {
+            generator.flush();
+        }
     }
 
     public boolean areErrorsPresent(ExecutionResult executionResult) {
@@ -139,14 +339,37 @@ public class GraphQLObjectMapper {
         return result;
     }
 
+    /**
+     * Reads variables sent on their own, e.g. as a GET parameter, which must hold nothing after them.
+     */
     public Map<String, Object> deserializeVariables(String variables) {
-        try {
-            return VariablesDeserializer.deserializeVariablesObject(getJacksonMapper().readValue(variables, Object.class), getJacksonMapper());
+        try (JsonParser parser = createParser(variables)) {
+            Map<String, Object> result = VariablesDeserializer.readVariables(parser, getJacksonMapper(), variablesLimits);
+            if (parser.nextToken() != null) {
+                throw JsonMappingException.from(parser, "Unexpected content after the variables");
+            }
+            return result;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Reads the {@code map} part of a multipart request, which maps the names of file parts to the paths of the
+     * variables they are uploaded to.
+     */
+    public Map<String, List<String>> readMultipartMap(InputStream inputStream) throws IOException {
+        ObjectReader reader = mappers.multipartMapReader;
+        if (reader == null) {
+            mappers.multipartMapReader = reader = getJacksonMapper().readerFor(MULTIPART_MAP_TYPE);
+        }
+        return reader.readValue(inputStream);
+    }
+
+    public Map<String, Object> deserializeExtensions(String extensions) {
+        return deserializeVariables(extensions);
+    }
+
     public static Builder newBuilder() {
         return new Builder();
     }
@@ -154,6 +377,9 @@ public class GraphQLObjectMapper {
     public static class Builder {
         private ObjectMapperProvider objectMapperProvider = new ConfiguringObjectMapperProvider();
         private Supplier<GraphQLErrorHandler> graphQLErrorHandler = DefaultGraphQLErrorHandler::new;
+        private int flushThreshold;
+        private boolean resultTreeWriter;
+        private VariablesDeserializer.Limits variablesLimits = VariablesDeserializer.Limits.NONE;
 
         public Builder withObjectMapperConfigurer(ObjectMapperConfigurer objectMapperConfigurer) {
             return withObjectMapperConfigurer(() -> objectMapperConfigurer);
@@ -178,8 +404,91 @@ public class GraphQLObjectMapper {
             return this;
         }
 
+        /**
+         * @param flushThreshold the number of bytes after which a streamed response is flushed to the client, 0 leaves
+         *                       flushing to the servlet container's response buffer
+         */
+        public Builder withFlushThreshold(int flushThreshold) {
+            this.flushThreshold = flushThreshold;
+            return this;
+        }
+
+        /**
+         * Writes the data of results with a specialised writer for the maps, lists and scalars they are made of, which
+         * only falls back to the {@code ObjectMapper} for other values such as those of custom scalars.  Inclusion
+         * rules and map ordering configured on the {@code ObjectMapper} don't apply to the data then.
+         */
+        public Builder withResultTreeWriter(boolean resultTreeWriter) {
+            this.resultTreeWriter = resultTreeWriter;
+            return this;
+        }
+
+        /**
+         * Rejects variables that nest deeper than {@code maxDepth} levels or hold more than {@code maxValues} values in
+         * total as soon as they are read that far.  0 means no limit.
+         */
+        public Builder withVariablesLimits(int maxDepth, int maxValues) {
+            this.variablesLimits = new VariablesDeserializer.Limits(maxDepth, maxValues);
+            return this;
+        }
+
         public GraphQLObjectMapper build() {
-            return new GraphQLObjectMapper(objectMapperProvider, graphQLErrorHandler);
+            return new GraphQLObjectMapper(objectMapperProvider, graphQLErrorHandler, flushThreshold, resultTreeWriter, variablesLimits);
+        }
+    }
+
+    /**
+     * The mappers for every format and the readers derived from them, created once and shared with the mappers returned
+     * by {@link #forFormats}.  Readers are immutable, so two threads racing to create one at worst create it twice.
+     */
+    private static final class Mappers {
+        private final ObjectMapperProvider objectMapperProvider;
+        private final Map<WireFormat, ObjectMapper> byFormat = new ConcurrentHashMap<>();
+
+        private volatile ObjectReader requestReader;
+        private volatile ObjectReader multipartMapReader;
+
+        Mappers(ObjectMapperProvider objectMapperProvider) {
+            this.objectMapperProvider = objectMapperProvider;
+        }
+
+        ObjectMapper get(WireFormat format) {
+            return byFormat.computeIfAbsent(format, f -> f == WireFormat.JSON ? objectMapperProvider.provide() : objectMapperProvider.provide(f.createFactory()));
+        }
+    }
+
+    private static class ThresholdFlushingOutputStream extends FilterOutputStream {
+        private final int flushThreshold;
+        private int unflushed;
+
+        ThresholdFlushingOutputStream(OutputStream out, int flushThreshold) {
+            super(out);
+            this.flushThreshold = flushThreshold;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written(len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            unflushed = 0;
+            out.flush();
+        }
+
+        private void written(int length) throws IOException {
+            unflushed += length;
+            if (unflushed >= flushThreshold) {
+                flush();
+            }
         }
     }
 }
@@ -1,23 +1,36 @@
 package graphql.servlet;
 
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import graphql.ExecutionInput;
 import graphql.ExecutionResult;
 import graphql.GraphQL;
+import graphql.execution.ExecutionStrategy;
 import graphql.execution.instrumentation.ChainedInstrumentation;
 import graphql.execution.instrumentation.Instrumentation;
 import graphql.execution.instrumentation.SimpleInstrumentation;
 import graphql.execution.instrumentation.dataloader.DataLoaderDispatcherInstrumentation;
-import graphql.execution.preparsed.NoOpPreparsedDocumentProvider;
 import graphql.execution.preparsed.PreparsedDocumentProvider;
 import graphql.schema.GraphQLSchema;
+import graphql.servlet.internal.BatchDataLoaderDispatcher;
 import graphql.servlet.internal.ExecutionResultHandler;
+import org.dataloader.DataLoaderRegistry;
 
 import javax.security.auth.Subject;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.function.Supplier;
 
 /**
@@ -25,55 +38,215 @@ import java.util.function.Supplier;
  */
 public class GraphQLQueryInvoker {
 
+    public static final long DEFAULT_GRAPHQL_CACHE_SIZE = 32;
+    public static final int DEFAULT_MAX_BATCH_CONCURRENCY = 8;
+
     private final Supplier<ExecutionStrategyProvider> getExecutionStrategyProvider;
     private final Supplier<Instrumentation> getInstrumentation;
     private final Supplier<PreparsedDocumentProvider> getPreparsedDocumentProvider;
+    private final Cache<GraphQLCacheKey, GraphQL> graphQLCache;
+    private final Executor batchExecutor;
+    private final int maxBatchConcurrency;
+    private final boolean sharedBatchDataLoaders;
 
     protected GraphQLQueryInvoker(Supplier<ExecutionStrategyProvider> getExecutionStrategyProvider, Supplier<Instrumentation> getInstrumentation, Supplier<PreparsedDocumentProvider> getPreparsedDocumentProvider) {
+        this(getExecutionStrategyProvider, getInstrumentation, getPreparsedDocumentProvider, DEFAULT_GRAPHQL_CACHE_SIZE, null, DEFAULT_MAX_BATCH_CONCURRENCY, false);
+    }
+
+    protected GraphQLQueryInvoker(Supplier<ExecutionStrategyProvider> getExecutionStrategyProvider, Supplier<Instrumentation> getInstrumentation, Supplier<PreparsedDocumentProvider> getPreparsedDocumentProvider, long graphQLCacheSize, Executor batchExecutor, int maxBatchConcurrency, boolean sharedBatchDataLoaders) {
         this.getExecutionStrategyProvider = getExecutionStrategyProvider;
         this.getInstrumentation = getInstrumentation;
         this.getPreparsedDocumentProvider = getPreparsedDocumentProvider;
+        this.graphQLCache = CacheBuilder.newBuilder()
+            .maximumSize(graphQLCacheSize)
+            .recordStats()
+            .build();
+        this.batchExecutor = batchExecutor;
+        this.maxBatchConcurrency = Math.max(1, maxBatchConcurrency);
+        this.sharedBatchDataLoaders = sharedBatchDataLoaders;
     }
 
     public ExecutionResult query(GraphQLSingleInvocationInput singleInvocationInput) {
         return query(singleInvocationInput, singleInvocationInput.getExecutionInput());
     }
 
+    /**
+     * Executes the query without blocking the calling thread for the duration of asynchronous data fetchers.
+     */
+    public CompletableFuture<ExecutionResult> queryAsync(GraphQLSingleInvocationInput singleInvocationInput) {
+        ExecutionInput executionInput = singleInvocationInput.getExecutionInput();
+        return queryAsync(singleInvocationInput, executionInput, getGraphQL(singleInvocationInput.getSchema(), executionInput.getContext()));
+    }
+
     public void query(GraphQLBatchedInvocationInput batchedInvocationInput, ExecutionResultHandler executionResultHandler) {
-        Iterator<ExecutionInput> executionInputIterator = batchedInvocationInput.getExecutionInputs().iterator();
+        Optional<DataLoaderRegistry> dataLoaderRegistry = batchedInvocationInput.getContext().getDataLoaderRegistry();
+        if (sharedBatchDataLoaders && dataLoaderRegistry.isPresent()) {
+            queryWithSharedDataLoaders(batchedInvocationInput, dataLoaderRegistry.get(), executionResultHandler);
+            return;
+        }
+
+        Iterator<ExecutionInput> executionInputIterator = batchedInvocationInput.getExecutionInputIterator();
+
+        // DataLoaders aren't thread safe, so operations sharing a registry have to run one after another.
+        if (batchExecutor == null || dataLoaderRegistry.isPresent()) {
+            while (executionInputIterator.hasNext()) {
+                ExecutionResult result = query(batchedInvocationInput, executionInputIterator.next());
+                executionResultHandler.accept(result, executionInputIterator.hasNext());
+            }
+            return;
+        }
+
+        queryParallel(batchedInvocationInput, executionInputIterator, executionResultHandler);
+    }
+
+    /**
+     * Runs up to {@code maxBatchConcurrency} operations of the batch on the batch executor at a time.  Results are
+     * handed to the handler in request order, each one as soon as it and all of its predecessors are done, and every
+     * handed out result frees the slot for the next operation.
+     */
+    private void queryParallel(GraphQLBatchedInvocationInput batchedInvocationInput, Iterator<ExecutionInput> executionInputIterator, ExecutionResultHandler executionResultHandler) {
+        Deque<CompletableFuture<ExecutionResult>> inFlight = new ArrayDeque<>(maxBatchConcurrency);
+
+        try {
+            while (inFlight.size() < maxBatchConcurrency && executionInputIterator.hasNext()) {
+                inFlight.add(submit(batchedInvocationInput, executionInputIterator.next()));
+            }
+
+            while (!inFlight.isEmpty()) {
+                ExecutionResult result = inFlight.poll().join();
+                if (executionInputIterator.hasNext()) {
+                    inFlight.add(submit(batchedInvocationInput, executionInputIterator.next()));
+                }
+
+                executionResultHandler.accept(result, !inFlight.isEmpty());
+            }
+        } catch (CompletionException e) {
+            inFlight.forEach(future -> future.cancel(false));
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new RuntimeException(e.getCause());
+        } catch (RuntimeException e) {
+            inFlight.forEach(future -> future.cancel(false));
+            throw e;
+        }
+    }
 
-        while (executionInputIterator.hasNext()) {
-            ExecutionResult result = query(batchedInvocationInput, executionInputIterator.next());
-            executionResultHandler.accept(result, executionInputIterator.hasNext());
+    private CompletableFuture<ExecutionResult> submit(GraphQLBatchedInvocationInput batchedInvocationInput, ExecutionInput executionInput) {
+        return CompletableFuture.supplyAsync(() -> query(batchedInvocationInput, executionInput), batchExecutor);
+    }
+
+    /**
+     * Starts all operations of the batch at once against the shared registry, which is only dispatched once every
+     * running operation is waiting for it.  This lets DataLoaders coalesce keys across the operations of the batch.
+     * Pipelined batches are read up front here, since every operation has to be registered before the first one starts.
+     */
+    private void queryWithSharedDataLoaders(GraphQLBatchedInvocationInput batchedInvocationInput, DataLoaderRegistry dataLoaderRegistry, ExecutionResultHandler executionResultHandler) {
+        List<ExecutionInput> executionInputs = batchedInvocationInput.getExecutionInputs();
+        BatchDataLoaderDispatcher dispatcher = new BatchDataLoaderDispatcher(dataLoaderRegistry);
+
+        List<DataLoaderRegistry> operationRegistries = new ArrayList<>(executionInputs.size());
+        for (int i = 0; i < executionInputs.size(); i++) {
+            operationRegistries.add(dispatcher.newOperationRegistry());
+        }
+
+        List<CompletableFuture<ExecutionResult>> results = new ArrayList<>(executionInputs.size());
+        for (int i = 0; i < executionInputs.size(); i++) {
+            DataLoaderRegistry operationRegistry = operationRegistries.get(i);
+            GraphQL graphQL = getGraphQL(batchedInvocationInput.getSchema(), getInstrumentation(operationRegistry), false);
+
+            CompletableFuture<ExecutionResult> result = queryAsync(batchedInvocationInput, executionInputs.get(i), graphQL);
+            result.whenComplete((executionResult, throwable) -> dispatcher.operationCompleted(operationRegistry));
+            results.add(result);
+        }
+
+        Iterator<CompletableFuture<ExecutionResult>> resultIterator = results.iterator();
+        while (resultIterator.hasNext()) {
+            ExecutionResult result;
+            try {
+                result = resultIterator.next().join();
+            } catch (CompletionException e) {
+                Throwables.throwIfUnchecked(e.getCause());
+                throw new RuntimeException(e.getCause());
+            }
+
+            executionResultHandler.accept(result, resultIterator.hasNext());
         }
     }
 
-    private GraphQL newGraphQL(GraphQLSchema schema, Object context) {
+    /**
+     * Drops all cached {@link GraphQL} instances, e.g. after the schema has been rebuilt.
+     */
+    public void invalidateGraphQLCache() {
+        graphQLCache.invalidateAll();
+    }
+
+    /**
+     * @return hit/miss statistics of the cache of built {@link GraphQL} instances
+     */
+    public CacheStats getGraphQLCacheStats() {
+        return graphQLCache.stats();
+    }
+
+    /**
+     * Returns a {@link GraphQL} instance for the given schema and the current strategies, instrumentation and preparsed
+     * document provider.  Instances are cached by the identity of all of these, so handing out a new schema (or a new
+     * strategy etc.) automatically results in a new instance.  Contexts carrying a {@link org.dataloader.DataLoaderRegistry}
+     * need a per-request instrumentation and are therefore never cached.
+     */
+    protected GraphQL getGraphQL(GraphQLSchema schema, Object context) {
+        boolean cacheable = !(context instanceof GraphQLContext && ((GraphQLContext) context).getDataLoaderRegistry().isPresent());
+        return getGraphQL(schema, getInstrumentation(context), cacheable);
+    }
+
+    private GraphQL getGraphQL(GraphQLSchema schema, Instrumentation instrumentation, boolean cacheable) {
         ExecutionStrategyProvider executionStrategyProvider = getExecutionStrategyProvider.get();
+        PreparsedDocumentProvider preparsedDocumentProvider = getPreparsedDocumentProvider.get();
+
+        if (!cacheable) {
+            return newGraphQL(schema, executionStrategyProvider, instrumentation, preparsedDocumentProvider);
+        }
+
+        GraphQLCacheKey key = new GraphQLCacheKey(schema, executionStrategyProvider, instrumentation, preparsedDocumentProvider);
+        try {
+            return graphQLCache.get(key, () -> newGraphQL(schema, executionStrategyProvider, instrumentation, preparsedDocumentProvider));
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private GraphQL newGraphQL(GraphQLSchema schema, ExecutionStrategyProvider executionStrategyProvider, Instrumentation instrumentation, PreparsedDocumentProvider preparsedDocumentProvider) {
         return GraphQL.newGraphQL(schema)
             .queryExecutionStrategy(executionStrategyProvider.getQueryExecutionStrategy())
             .mutationExecutionStrategy(executionStrategyProvider.getMutationExecutionStrategy())
             .subscriptionExecutionStrategy(executionStrategyProvider.getSubscriptionExecutionStrategy())
-            .instrumentation(getInstrumentation(context))
-            .preparsedDocumentProvider(getPreparsedDocumentProvider.get())
+            .instrumentation(instrumentation)
+            .preparsedDocumentProvider(getPreparsedDocumentProvider(schema, preparsedDocumentProvider))
             .build();
     }
 
+    private PreparsedDocumentProvider getPreparsedDocumentProvider(GraphQLSchema schema, PreparsedDocumentProvider preparsedDocumentProvider) {
+        if (preparsedDocumentProvider instanceof CachingPreparsedDocumentProvider) {
+            return ((CachingPreparsedDocumentProvider) preparsedDocumentProvider).forSchema(schema);
+        }
+
+        return preparsedDocumentProvider;
+    }
+
     protected Instrumentation getInstrumentation(Object context) {
         if (context instanceof GraphQLContext) {
             return ((GraphQLContext) context).getDataLoaderRegistry()
-                    .map(registry -> {
-                        List<Instrumentation> instrumentations = new ArrayList<>();
-                        instrumentations.add(getInstrumentation.get());
-                        instrumentations.add(new DataLoaderDispatcherInstrumentation(registry));
-                        return new ChainedInstrumentation(instrumentations);
-                    })
-                    .map(Instrumentation.class::cast)
+                    .map(this::getInstrumentation)
                     .orElse(getInstrumentation.get());
         }
         return getInstrumentation.get();
     }
 
+    private Instrumentation getInstrumentation(DataLoaderRegistry registry) {
+        List<Instrumentation> instrumentations = new ArrayList<>();
+        instrumentations.add(getInstrumentation.get());
+        instrumentations.add(new DataLoaderDispatcherInstrumentation(registry));
+        return new ChainedInstrumentation(instrumentations);
+    }
+
     private ExecutionResult query(GraphQLInvocationInput invocationInput, ExecutionInput executionInput) {
         if (Subject.getSubject(AccessController.getContext()) == null && invocationInput.getSubject().isPresent()) {
             return Subject.doAs(invocationInput.getSubject().get(), (PrivilegedAction<ExecutionResult>) () -> {
@@ -88,8 +261,16 @@ public class GraphQLQueryInvoker {
         return query(invocationInput.getSchema(), executionInput);
     }
 
+    private CompletableFuture<ExecutionResult> queryAsync(GraphQLInvocationInput invocationInput, ExecutionInput executionInput, GraphQL graphQL) {
+        if (Subject.getSubject(AccessController.getContext()) == null && invocationInput.getSubject().isPresent()) {
+            return Subject.doAs(invocationInput.getSubject().get(), (PrivilegedAction<CompletableFuture<ExecutionResult>>) () -> graphQL.executeAsync(executionInput));
+        }
+
+        return graphQL.executeAsync(executionInput);
+    }
+
     private ExecutionResult query(GraphQLSchema schema, ExecutionInput executionInput) {
-        return newGraphQL(schema, executionInput.getContext()).execute(executionInput);
+        return getGraphQL(schema, executionInput.getContext()).execute(executionInput);
     }
 
     public static Builder newBuilder() {
@@ -97,9 +278,23 @@ public class GraphQLQueryInvoker {
     }
 
     public static class Builder {
-        private Supplier<ExecutionStrategyProvider> getExecutionStrategyProvider = DefaultExecutionStrategyProvider::new;
+        private Supplier<ExecutionStrategyProvider> getExecutionStrategyProvider = defaultExecutionStrategyProvider();
         private Supplier<Instrumentation> getInstrumentation = () -> SimpleInstrumentation.INSTANCE;
-        private Supplier<PreparsedDocumentProvider> getPreparsedDocumentProvider = () -> NoOpPreparsedDocumentProvider.INSTANCE;
+        private Supplier<PreparsedDocumentProvider> getPreparsedDocumentProvider = defaultPreparsedDocumentProvider();
+        private long graphQLCacheSize = DEFAULT_GRAPHQL_CACHE_SIZE;
+        private Executor batchExecutor;
+        private int maxBatchConcurrency = DEFAULT_MAX_BATCH_CONCURRENCY;
+        private boolean sharedBatchDataLoaders;
+
+        private static Supplier<ExecutionStrategyProvider> defaultExecutionStrategyProvider() {
+            ExecutionStrategyProvider provider = new DefaultExecutionStrategyProvider();
+            return () -> provider;
+        }
+
+        private static Supplier<PreparsedDocumentProvider> defaultPreparsedDocumentProvider() {
+            PreparsedDocumentProvider provider = new CachingPreparsedDocumentProvider();
+            return () -> provider;
+        }
 
         public Builder withExecutionStrategyProvider(ExecutionStrategyProvider provider) {
             return withExecutionStrategyProvider(() -> provider);
@@ -128,8 +323,90 @@ public class GraphQLQueryInvoker {
             return this;
         }
 
+        /**
+         * @param graphQLCacheSize the maximum number of built {@link GraphQL} instances to keep, 0 disables the cache
+         */
+        public Builder withGraphQLCacheSize(long graphQLCacheSize) {
+            this.graphQLCacheSize = graphQLCacheSize;
+            return this;
+        }
+
+        /**
+         * Executes the operations of batched requests in parallel on the given executor instead of one after another
+         * on the request thread.
+         */
+        public Builder withBatchExecutor(Executor batchExecutor) {
+            this.batchExecutor = batchExecutor;
+            return this;
+        }
+
+        /**
+         * @param maxBatchConcurrency the maximum number of operations of a single batch executing at the same time
+         */
+        public Builder withMaxBatchConcurrency(int maxBatchConcurrency) {
+            this.maxBatchConcurrency = maxBatchConcurrency;
+            return this;
+        }
+
+        /**
+         * Executes all operations of a batch whose context carries a {@link DataLoaderRegistry} concurrently against
+         * that registry, so that keys requested by several operations are only loaded once.
+         */
+        public Builder withSharedBatchDataLoaders(boolean sharedBatchDataLoaders) {
+            this.sharedBatchDataLoaders = sharedBatchDataLoaders;
+            return this;
+        }
+
         public GraphQLQueryInvoker build() {
-            return new GraphQLQueryInvoker(getExecutionStrategyProvider, getInstrumentation, getPreparsedDocumentProvider);
+            return new GraphQLQueryInvoker(getExecutionStrategyProvider, getInstrumentation, getPreparsedDocumentProvider, graphQLCacheSize, batchExecutor, maxBatchConcurrency, sharedBatchDataLoaders);
+        }
+    }
+
+    private static final class GraphQLCacheKey {
+        private final GraphQLSchema schema;
+        private final ExecutionStrategy queryExecutionStrategy;
+        private final ExecutionStrategy mutationExecutionStrategy;
+        private final ExecutionStrategy subscriptionExecutionStrategy;
+        private final Instrumentation instrumentation;
+        private final PreparsedDocumentProvider preparsedDocumentProvider;
+
+        GraphQLCacheKey(GraphQLSchema schema, ExecutionStrategyProvider executionStrategyProvider, Instrumentation instrumentation, PreparsedDocumentProvider preparsedDocumentProvider) {
+            this.schema = schema;
+            this.queryExecutionStrategy = executionStrategyProvider.getQueryExecutionStrategy();
+            this.mutationExecutionStrategy = executionStrategyProvider.getMutationExecutionStrategy();
+            this.subscriptionExecutionStrategy = executionStrategyProvider.getSubscriptionExecutionStrategy();
+            this.instrumentation = instrumentation;
+            this.preparsedDocumentProvider = preparsedDocumentProvider;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof GraphQLCacheKey)) {
+                return false;
+            }
+
+            // Identity comparison on purpose: a rebuilt schema must never hit an instance built for the old one.
+            GraphQLCacheKey that = (GraphQLCacheKey) o;
+            return schema == that.schema
+                && queryExecutionStrategy == that.queryExecutionStrategy
+                && mutationExecutionStrategy == that.mutationExecutionStrategy
+                && subscriptionExecutionStrategy == that.subscriptionExecutionStrategy
+                && instrumentation == that.instrumentation
+                && preparsedDocumentProvider == that.preparsedDocumentProvider;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(schema);
+            result = 31 * result + System.identityHashCode(queryExecutionStrategy);
+            result = 31 * result + System.identityHashCode(mutationExecutionStrategy);
+            result = 31 * result + System.identityHashCode(subscriptionExecutionStrategy);
+            result = 31 * result + System.identityHashCode(instrumentation);
+            result = 31 * result + System.identityHashCode(preparsedDocumentProvider);
+            return result;
         }
     }
 }
@@ -17,6 +17,10 @@ public class GraphQLSingleInvocationInput extends GraphQLInvocationInput {
         this.request = request;
     }
 
+    public GraphQLRequest getRequest() {
+        return request;
+    }
+
     public ExecutionInput getExecutionInput() {
         return createExecutionInput(request);
     }
@@ -0,0 +1,44 @@
+package graphql.servlet;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * A {@link PersistedQueryCache} that keeps queries in a bounded LRU cache, weighted by query length.
+ */
+public class InMemoryPersistedQueryCache implements PersistedQueryCache {
+
+    /**
+     * Total number of query characters kept in the cache by default.
+     */
+    public static final long DEFAULT_MAXIMUM_WEIGHT = 4 * 1024 * 1024;
+
+    private final Cache<String, String> cache;
+
+    public InMemoryPersistedQueryCache() {
+        this(DEFAULT_MAXIMUM_WEIGHT);
+    }
+
+    public InMemoryPersistedQueryCache(long maximumWeight) {
+        this.cache = CacheBuilder.newBuilder()
+            .maximumWeight(maximumWeight)
+            .weigher((String hash, String query) -> query.length())
+            .recordStats()
+            .build();
+    }
+
+    @Override
+    public String getQuery(String sha256Hash) {
+        return cache.getIfPresent(sha256Hash);
+    }
+
+    @Override
+    public void putQuery(String sha256Hash, String query) {
+        cache.put(sha256Hash, query);
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+}
@@ -0,0 +1,113 @@
+package graphql.servlet;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import graphql.introspection.IntrospectionQuery;
+import graphql.schema.GraphQLSchema;
+import graphql.servlet.internal.GraphQLRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the serialized response to the standard introspection query for every schema instance, so {@code /schema.json}
+ * and tools that post the introspection query don't run it through the engine every time.  The response only depends on
+ * the schema; a schema provider returning a new instance gets a new response, the old one is dropped with the schema.
+ */
+public class IntrospectionCache {
+
+    private static final String INTROSPECTION_OPERATION_NAME = "IntrospectionQuery";
+    private static final String NORMALIZED_INTROSPECTION_QUERY = normalize(IntrospectionQuery.INTROSPECTION_QUERY);
+
+    private final Cache<GraphQLSchema, CachedResponse> cache = CacheBuilder.newBuilder().weakKeys().build();
+
+    /**
+     * @return true if the request is the standard introspection query without variables, ignoring insignificant
+     * whitespace and commas
+     */
+    public boolean isIntrospectionQuery(GraphQLRequest request) {
+        String query = request.getQuery();
+        String operationName = request.getOperationName();
+        return query != null
+            && (operationName == null || operationName.isEmpty() || operationName.equals(INTROSPECTION_OPERATION_NAME))
+            && (request.getVariables() == null || request.getVariables().isEmpty())
+            && normalize(query).equals(NORMALIZED_INTROSPECTION_QUERY);
+    }
+
+    /**
+     * @return the cached response for the schema, or null
+     */
+    public byte[] getResponse(GraphQLSchema schema) {
+        CachedResponse response = cache.getIfPresent(schema);
+        return response != null ? response.json : null;
+    }
+
+    /**
+     * @return the cached response for the schema compressed with gzip, or null
+     */
+    public byte[] getGzippedResponse(GraphQLSchema schema) {
+        CachedResponse response = cache.getIfPresent(schema);
+        return response != null ? response.getGzipped() : null;
+    }
+
+    public void putResponse(GraphQLSchema schema, byte[] response) {
+        cache.put(schema, new CachedResponse(response));
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Drops whitespace and commas, keeping a single space only where it separates two names.
+     */
+    private static String normalize(String query) {
+        StringBuilder normalized = new StringBuilder(query.length());
+        boolean separated = false;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c) || c == ',' || c == '\uFEFF') {
+                separated = true;
+                continue;
+            }
+
+            if (separated && normalized.length() > 0 && isNameChar(c) && isNameChar(normalized.charAt(normalized.length() - 1))) {
+                normalized.append(' ');
+            }
+            normalized.append(c);
+            separated = false;
+        }
+        return normalized.toString();
+    }
+
+    private static boolean isNameChar(char c) {
+        return c == '_' || c >= '0' && c <= '9' || c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+    private static final class CachedResponse {
+        private final byte[] json;
+        private volatile byte[] gzipped;
+
+        CachedResponse(byte[] json) {
+            this.json = json;
+        }
+
+        byte[] getGzipped() {
+            byte[] result = gzipped;
+            if (result == null) {
+                // Computed once per schema, a racing thread at worst compresses it a second time.
+                ByteArrayOutputStream out = new ByteArrayOutputStream(json.length / 4);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                    gzip.write(json);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                result = out.toByteArray();
+                gzipped = result;
+            }
+            return result;
+        }
+    }
+}
@@ -1,7 +1,17 @@
 package graphql.servlet;
 
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 public interface ObjectMapperProvider {
 	ObjectMapper provide();
+
+	/**
+	 * @param jsonFactory the factory of a binary format such as CBOR or Smile
+	 * @return a mapper for the format, configured like the one {@link #provide()} returns, or null if the format isn't
+	 * supported, in which case requests and responses are JSON only
+	 */
+	default ObjectMapper provide(JsonFactory jsonFactory) {
+		return null;
+	}
 }
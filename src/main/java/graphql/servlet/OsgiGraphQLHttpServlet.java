@@ -3,7 +3,6 @@ package graphql.servlet;
 import graphql.execution.instrumentation.ChainedInstrumentation;
 import graphql.execution.instrumentation.Instrumentation;
 import graphql.execution.instrumentation.dataloader.DataLoaderDispatcherInstrumentation;
-import graphql.execution.preparsed.NoOpPreparsedDocumentProvider;
 import graphql.execution.preparsed.PreparsedDocumentProvider;
 import graphql.schema.GraphQLObjectType;
 import graphql.schema.GraphQLType;
@@ -40,7 +39,10 @@ public class OsgiGraphQLHttpServlet extends AbstractGraphQLHttpServlet {
     private ExecutionStrategyProvider executionStrategyProvider = new DefaultExecutionStrategyProvider();
     private InstrumentationProvider instrumentationProvider = new NoOpInstrumentationProvider();
     private GraphQLErrorHandler errorHandler = new DefaultGraphQLErrorHandler();
-    private PreparsedDocumentProvider preparsedDocumentProvider = NoOpPreparsedDocumentProvider.INSTANCE;
+    private final PreparsedDocumentProvider defaultPreparsedDocumentProvider = new CachingPreparsedDocumentProvider();
+    private PreparsedDocumentProvider preparsedDocumentProvider = defaultPreparsedDocumentProvider;
+
+    private PersistedQueryCache persistedQueryCache;
 
     private GraphQLSchemaProvider schemaProvider;
 
@@ -106,6 +108,11 @@ public class OsgiGraphQLHttpServlet extends AbstractGraphQLHttpServlet {
         }
 
         this.schemaProvider = new DefaultGraphQLSchemaProvider(newSchema().query(queryTypeBuilder.build()).mutation(mutationType).build(types));
+
+        // Called from the constructor before the invoker exists, nothing can be cached at that point.
+        if (queryInvoker != null) {
+            queryInvoker.invalidateGraphQLCache();
+        }
     }
 
     @Reference(cardinality = ReferenceCardinality.MULTIPLE, policyOption = ReferencePolicyOption.GREEDY)
@@ -217,7 +224,15 @@ public class OsgiGraphQLHttpServlet extends AbstractGraphQLHttpServlet {
         this.preparsedDocumentProvider = preparsedDocumentProvider;
     }
     public void unsetPreparsedDocumentProvider(PreparsedDocumentProvider preparsedDocumentProvider) {
-        this.preparsedDocumentProvider = NoOpPreparsedDocumentProvider.INSTANCE;
+        this.preparsedDocumentProvider = defaultPreparsedDocumentProvider;
+    }
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy= ReferencePolicy.DYNAMIC, policyOption = ReferencePolicyOption.GREEDY)
+    public void setPersistedQueryCache(PersistedQueryCache persistedQueryCache) {
+        this.persistedQueryCache = persistedQueryCache;
+    }
+    public void unsetPersistedQueryCache(PersistedQueryCache persistedQueryCache) {
+        this.persistedQueryCache = null;
     }
 
     public GraphQLContextBuilder getContextBuilder() {
@@ -247,4 +262,9 @@ public class OsgiGraphQLHttpServlet extends AbstractGraphQLHttpServlet {
     public GraphQLSchemaProvider getSchemaProvider() {
         return schemaProvider;
     }
+
+    @Override
+    public PersistedQueryCache getPersistedQueryCache() {
+        return persistedQueryCache;
+    }
 }
@@ -0,0 +1,20 @@
+package graphql.servlet;
+
+/**
+ * Storage for automatic persisted queries, i.e. requests that only carry the SHA-256 hash of their query in
+ * {@code extensions.persistedQuery.sha256Hash}.
+ */
+public interface PersistedQueryCache {
+
+    /**
+     * @param sha256Hash the lower case hex encoded SHA-256 hash of the query
+     * @return the query registered for the hash, or null if it is unknown
+     */
+    String getQuery(String sha256Hash);
+
+    /**
+     * @param sha256Hash the lower case hex encoded SHA-256 hash of the query, already verified against the query
+     * @param query the query to register
+     */
+    void putQuery(String sha256Hash, String query);
+}
@@ -0,0 +1,27 @@
+package graphql.servlet;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Errors of the automatic persisted query protocol.  Clients recognise them by message as well as by
+ * {@code extensions.code}.
+ */
+public class PersistedQueryError extends GenericGraphQLError {
+
+    public static final PersistedQueryError NOT_FOUND = new PersistedQueryError("PersistedQueryNotFound", "PERSISTED_QUERY_NOT_FOUND");
+    public static final PersistedQueryError NOT_SUPPORTED = new PersistedQueryError("PersistedQueryNotSupported", "PERSISTED_QUERY_NOT_SUPPORTED");
+    public static final PersistedQueryError HASH_MISMATCH = new PersistedQueryError("provided sha does not match query", "INVALID_PERSISTED_QUERY_HASH");
+
+    private final Map<String, Object> extensions;
+
+    private PersistedQueryError(String message, String code) {
+        super(message);
+        this.extensions = Collections.singletonMap("code", code);
+    }
+
+    @Override
+    public Map<String, Object> getExtensions() {
+        return extensions;
+    }
+}
@@ -0,0 +1,49 @@
+package graphql.servlet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The result of analysing a query with {@link QueryCostInstrumentation}.
+ */
+public class QueryCost {
+
+    private final long cost;
+    private final int depth;
+    private final int breadth;
+
+    public QueryCost(long cost, int depth, int breadth) {
+        this.cost = cost;
+        this.depth = depth;
+        this.breadth = breadth;
+    }
+
+    /**
+     * @return the sum of the weights of all selected fields, multiplied by the page sizes of the lists they are in
+     */
+    public long getCost() {
+        return cost;
+    }
+
+    /**
+     * @return the deepest nesting of fields
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the largest number of fields selected in one selection set
+     */
+    public int getBreadth() {
+        return breadth;
+    }
+
+    Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("cost", cost);
+        map.put("depth", depth);
+        map.put("breadth", breadth);
+        return map;
+    }
+}
@@ -0,0 +1,22 @@
+package graphql.servlet;
+
+import java.util.Map;
+
+/**
+ * Returned instead of executing a query that exceeds the limits of {@link QueryCostInstrumentation}.
+ */
+public class QueryCostError extends GenericGraphQLError {
+
+    private final Map<String, Object> extensions;
+
+    QueryCostError(String message, QueryCost queryCost) {
+        super(message);
+        this.extensions = queryCost.toMap();
+        this.extensions.put("code", "QUERY_TOO_EXPENSIVE");
+    }
+
+    @Override
+    public Map<String, Object> getExtensions() {
+        return extensions;
+    }
+}
@@ -0,0 +1,338 @@
+package graphql.servlet;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.math.LongMath;
+import graphql.ExecutionResult;
+import graphql.ExecutionResultImpl;
+import graphql.analysis.QueryTraversal;
+import graphql.analysis.QueryVisitorFieldEnvironment;
+import graphql.analysis.QueryVisitorStub;
+import graphql.execution.AbortExecutionException;
+import graphql.execution.ExecutionContext;
+import graphql.execution.instrumentation.InstrumentationState;
+import graphql.execution.instrumentation.SimpleInstrumentation;
+import graphql.execution.instrumentation.parameters.InstrumentationExecutionParameters;
+import graphql.language.Argument;
+import graphql.language.Directive;
+import graphql.language.Field;
+import graphql.language.Node;
+import graphql.language.VariableReference;
+import graphql.schema.GraphQLArgument;
+import graphql.schema.GraphQLDirective;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLSchema;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rejects queries that are too expensive before any field is fetched, and reports the cost of the others in the
+ * {@code queryCost} extension of the result.
+ *
+ * Every field costs its weight: the {@code weight} argument of a {@code @cost} directive on the field definition, a
+ * weight registered with {@link Builder#withFieldWeight(GraphQLFieldDefinition, int)}, or 1.  The cost of the selections
+ * of a field with a {@code first} or {@code limit} argument is multiplied by that argument.  Analysis results are cached
+ * per digest of the normalised query, schema, operation name and the values of the variables the cost depends on: those
+ * passed to {@code first} or {@code limit} and to {@code @skip} or {@code @include}.  So a repeated query isn't analysed
+ * again, whatever its other variables are, and the cache holds on to neither query texts, documents nor schemas.
+ */
+public class QueryCostInstrumentation extends SimpleInstrumentation {
+
+    public static final String COST_DIRECTIVE = "cost";
+    public static final String EXTENSION = "queryCost";
+
+    private static final String[] MULTIPLIER_ARGUMENTS = {"first", "limit"};
+    private static final long DEFAULT_CACHE_SIZE = 1024;
+
+    private final long maxCost;
+    private final int maxDepth;
+    private final int maxBreadth;
+    private final Map<GraphQLFieldDefinition, Integer> fieldWeights;
+    private final Cache<CostKey, QueryCost> cache;
+    private final Cache<HashCode, Set<String>> costVariables;
+    private final Cache<GraphQLSchema, Long> schemaVersions = CacheBuilder.newBuilder().weakKeys().build();
+    private final AtomicLong lastSchemaVersion = new AtomicLong();
+
+    private QueryCostInstrumentation(long maxCost, int maxDepth, int maxBreadth, Map<GraphQLFieldDefinition, Integer> fieldWeights, long cacheSize) {
+        this.maxCost = maxCost;
+        this.maxDepth = maxDepth;
+        this.maxBreadth = maxBreadth;
+        this.fieldWeights = fieldWeights;
+        this.cache = CacheBuilder.newBuilder()
+            .maximumSize(cacheSize)
+            .recordStats()
+            .build();
+        this.costVariables = CacheBuilder.newBuilder()
+            .maximumSize(cacheSize)
+            .build();
+    }
+
+    public CacheStats getCacheStats() {
+        return cache.stats();
+    }
+
+    @Override
+    public InstrumentationState createState() {
+        return new CostState();
+    }
+
+    @Override
+    public ExecutionContext instrumentExecutionContext(ExecutionContext executionContext, InstrumentationExecutionParameters parameters) {
+        QueryCost queryCost = getQueryCost(executionContext, parameters.getQuery(), parameters.getVariables());
+
+        String violation = getViolation(queryCost);
+        if (violation != null) {
+            throw new AbortExecutionException(Collections.singletonList(new QueryCostError(violation, queryCost)));
+        }
+
+        CostState state = parameters.getInstrumentationState();
+        state.queryCost = queryCost;
+        return executionContext;
+    }
+
+    @Override
+    public CompletableFuture<ExecutionResult> instrumentExecutionResult(ExecutionResult executionResult, InstrumentationExecutionParameters parameters) {
+        CostState state = parameters.getInstrumentationState();
+        if (state.queryCost == null) {
+            return CompletableFuture.completedFuture(executionResult);
+        }
+
+        return CompletableFuture.completedFuture(ExecutionResultImpl.newExecutionResult()
+            .data(executionResult.getData())
+            .errors(executionResult.getErrors())
+            .extensions(executionResult.getExtensions())
+            .addExtension(EXTENSION, state.queryCost.toMap())
+            .build());
+    }
+
+    private QueryCost getQueryCost(ExecutionContext executionContext, String query, Map<String, Object> variables) {
+        HashCode queryDigest = Hashing.murmur3_128().hashString(ResponseCache.normalizeQuery(query), StandardCharsets.UTF_8);
+        try {
+            Map<String, Object> keyVariables = new HashMap<>();
+            for (String name : costVariables.get(queryDigest, () -> findCostVariables(executionContext.getDocument(), new HashSet<>()))) {
+                if (variables != null && variables.containsKey(name)) {
+                    keyVariables.put(name, variables.get(name));
+                }
+            }
+
+            // Schemas are told apart by a version, so a replaced schema isn't kept alive by the cache.
+            long schemaVersion = schemaVersions.get(executionContext.getGraphQLSchema(), lastSchemaVersion::incrementAndGet);
+            CostKey key = new CostKey(queryDigest, schemaVersion, executionContext.getOperationDefinition().getName(), keyVariables);
+            return cache.get(key, () -> analyze(executionContext, variables));
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Collects the names of the variables passed to multiplier arguments and to {@code @skip} or {@code @include}, the
+     * only ones that can change the cost of the document.
+     */
+    private static Set<String> findCostVariables(Node<?> node, Set<String> names) {
+        if (node instanceof Field) {
+            for (Argument argument : ((Field) node).getArguments()) {
+                if (Arrays.asList(MULTIPLIER_ARGUMENTS).contains(argument.getName())) {
+                    addVariableName(argument, names);
+                }
+            }
+        } else if (node instanceof Directive) {
+            Directive directive = (Directive) node;
+            if (directive.getName().equals("skip") || directive.getName().equals("include")) {
+                directive.getArguments().forEach(argument -> addVariableName(argument, names));
+            }
+        }
+
+        for (Node<?> child : node.getChildren()) {
+            findCostVariables(child, names);
+        }
+        return names;
+    }
+
+    private static void addVariableName(Argument argument, Set<String> names) {
+        if (argument.getValue() instanceof VariableReference) {
+            names.add(((VariableReference) argument.getValue()).getName());
+        }
+    }
+
+    private QueryCost analyze(ExecutionContext executionContext, Map<String, Object> variables) {
+        // The environment handed to a field is an equal copy of its parent environment, not the same instance.
+        Map<QueryVisitorFieldEnvironment, Selection> selections = new HashMap<>();
+        Selection root = new Selection();
+        int[] maxBreadth = {0};
+
+        QueryTraversal.newQueryTraversal()
+            .schema(executionContext.getGraphQLSchema())
+            .document(executionContext.getDocument())
+            .operationName(executionContext.getOperationDefinition().getName())
+            .variables(variables)
+            .build()
+            .visitPostOrder(new QueryVisitorStub() {
+                @Override
+                public void visitField(QueryVisitorFieldEnvironment environment) {
+                    // Post order: the selections of the field have all been visited already.
+                    Selection children = selections.remove(environment);
+                    if (children == null) {
+                        children = new Selection();
+                    }
+                    maxBreadth[0] = Math.max(maxBreadth[0], children.fields);
+
+                    long cost = LongMath.saturatedAdd(getWeight(environment.getFieldDefinition()), LongMath.saturatedMultiply(getMultiplier(environment.getArguments()), children.cost));
+
+                    QueryVisitorFieldEnvironment parentEnvironment = environment.getParentEnvironment();
+                    Selection parent = parentEnvironment != null ? selections.computeIfAbsent(parentEnvironment, e -> new Selection()) : root;
+                    parent.add(cost, children.depth + 1);
+                }
+            });
+
+        return new QueryCost(root.cost, root.depth, Math.max(maxBreadth[0], root.fields));
+    }
+
+    private String getViolation(QueryCost queryCost) {
+        if (queryCost.getCost() > maxCost) {
+            return "Query cost " + queryCost.getCost() + " exceeds the maximum cost of " + maxCost;
+        }
+        if (queryCost.getDepth() > maxDepth) {
+            return "Query depth " + queryCost.getDepth() + " exceeds the maximum depth of " + maxDepth;
+        }
+        if (queryCost.getBreadth() > maxBreadth) {
+            return "Query breadth " + queryCost.getBreadth() + " exceeds the maximum breadth of " + maxBreadth;
+        }
+        return null;
+    }
+
+    private long getWeight(GraphQLFieldDefinition fieldDefinition) {
+        Integer weight = fieldWeights.get(fieldDefinition);
+        if (weight != null) {
+            return weight;
+        }
+
+        GraphQLDirective directive = fieldDefinition.getDirective(COST_DIRECTIVE);
+        if (directive != null) {
+            GraphQLArgument argument = directive.getArgument("weight");
+            if (argument != null && argument.getValue() instanceof Number) {
+                return ((Number) argument.getValue()).longValue();
+            }
+        }
+
+        return 1;
+    }
+
+    private static long getMultiplier(Map<String, Object> arguments) {
+        for (String name : MULTIPLIER_ARGUMENTS) {
+            Object value = arguments.get(name);
+            if (value instanceof Number) {
+                return Math.max(((Number) value).longValue(), 0);
+            }
+        }
+        return 1;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private long maxCost = Long.MAX_VALUE;
+        private int maxDepth = Integer.MAX_VALUE;
+        private int maxBreadth = Integer.MAX_VALUE;
+        private final Map<GraphQLFieldDefinition, Integer> fieldWeights = new IdentityHashMap<>();
+        private long cacheSize = DEFAULT_CACHE_SIZE;
+
+        public Builder withMaxCost(long maxCost) {
+            this.maxCost = maxCost;
+            return this;
+        }
+
+        public Builder withMaxDepth(int maxDepth) {
+            this.maxDepth = maxDepth;
+            return this;
+        }
+
+        public Builder withMaxBreadth(int maxBreadth) {
+            this.maxBreadth = maxBreadth;
+            return this;
+        }
+
+        /**
+         * Takes precedence over a {@code @cost} directive on the field.
+         */
+        public Builder withFieldWeight(GraphQLFieldDefinition fieldDefinition, int weight) {
+            this.fieldWeights.put(fieldDefinition, weight);
+            return this;
+        }
+
+        /**
+         * @param cacheSize the number of analysed queries to keep
+         */
+        public Builder withCacheSize(long cacheSize) {
+            this.cacheSize = cacheSize;
+            return this;
+        }
+
+        public QueryCostInstrumentation build() {
+            return new QueryCostInstrumentation(maxCost, maxDepth, maxBreadth, new IdentityHashMap<>(fieldWeights), cacheSize);
+        }
+    }
+
+    private static class CostState implements InstrumentationState {
+        private QueryCost queryCost;
+    }
+
+    private static class Selection {
+        private long cost;
+        private int depth;
+        private int fields;
+
+        void add(long fieldCost, int fieldDepth) {
+            cost = LongMath.saturatedAdd(cost, fieldCost);
+            depth = Math.max(depth, fieldDepth);
+            fields++;
+        }
+    }
+
+    private static final class CostKey {
+        private final HashCode queryDigest;
+        private final long schemaVersion;
+        private final String operationName;
+        private final Map<String, Object> variables;
+
+        CostKey(HashCode queryDigest, long schemaVersion, String operationName, Map<String, Object> variables) {
+            this.queryDigest = queryDigest;
+            this.schemaVersion = schemaVersion;
+            this.operationName = operationName;
+            this.variables = variables;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CostKey)) {
+                return false;
+            }
+
+            CostKey that = (CostKey) o;
+            return queryDigest.equals(that.queryDigest) && schemaVersion == that.schemaVersion && Objects.equals(operationName, that.operationName) && Objects.equals(variables, that.variables);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(queryDigest, schemaVersion, operationName, variables);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package graphql.servlet;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import graphql.schema.GraphQLSchema;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Keeps the serialized responses of read-only (GET) queries for a limited time.
+ *
+ * Responses are cached per query, variables, operation name, schema and partition.  The partition is derived from the
+ * context of the request and keeps responses that depend on who is asking apart, e.g. by user or tenant.  There is no
+ * default: a cache shared by all users has to be asked for with a constant partition, and requests the partition function
+ * returns null for aren't cached at all.  Queries that only differ in whitespace, commas and comments share an entry.
+ * Only responses without errors are cached.  Since the schema instance is part of the key, responses of a replaced schema
+ * are never served and simply expire.
+ */
+public class ResponseCache {
+
+    /**
+     * Total number of response bytes kept in the cache by default.
+     */
+    public static final long DEFAULT_MAXIMUM_WEIGHT = 16 * 1024 * 1024;
+
+    private final Cache<ResponseKey, byte[]> cache;
+    private final Function<GraphQLContext, String> partition;
+
+    /**
+     * @param timeToLive how long a response is served from the cache
+     * @param partition  derives the partition of a request from its context, or returns null if it mustn't be cached
+     */
+    public ResponseCache(Duration timeToLive, Function<GraphQLContext, String> partition) {
+        this(timeToLive, DEFAULT_MAXIMUM_WEIGHT, partition);
+    }
+
+    /**
+     * @param timeToLive    how long a response is served from the cache
+     * @param maximumWeight the total number of response bytes to keep
+     * @param partition     derives the partition of a request from its context, or returns null if it mustn't be cached
+     */
+    public ResponseCache(Duration timeToLive, long maximumWeight, Function<GraphQLContext, String> partition) {
+        this.cache = CacheBuilder.newBuilder()
+            .expireAfterWrite(timeToLive.toNanos(), TimeUnit.NANOSECONDS)
+            .maximumWeight(maximumWeight)
+            .weigher((ResponseKey key, byte[] response) -> key.query.length() + response.length)
+            .recordStats()
+            .build();
+        this.partition = Objects.requireNonNull(partition, "partition");
+    }
+
+    /**
+     * @return the cached response, or null
+     */
+    public byte[] getResponse(GraphQLSingleInvocationInput invocationInput) {
+        ResponseKey key = getKey(invocationInput);
+        return key != null ? cache.getIfPresent(key) : null;
+    }
+
+    public void putResponse(GraphQLSingleInvocationInput invocationInput, byte[] response) {
+        ResponseKey key = getKey(invocationInput);
+        if (key != null) {
+            cache.put(key, response);
+        }
+    }
+
+    /**
+     * @return hit rate and eviction statistics of the cache
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private ResponseKey getKey(GraphQLSingleInvocationInput invocationInput) {
+        String query = invocationInput.getRequest().getQuery();
+        if (query == null) {
+            return null;
+        }
+
+        String requestPartition = partition.apply(invocationInput.getContext());
+        if (requestPartition == null) {
+            return null;
+        }
+
+        Map<String, Object> variables = invocationInput.getRequest().getVariables();
+        String operationName = invocationInput.getRequest().getOperationName();
+        return new ResponseKey(
+            normalizeQuery(query),
+            variables != null ? variables : Collections.emptyMap(),
+            operationName != null && !operationName.isEmpty() ? operationName : null,
+            invocationInput.getSchema(),
+            requestPartition
+        );
+    }
+
+    /**
+     * Drops the ignored tokens of a query, whitespace, commas and comments, outside of strings.  A single space is kept
+     * where two names or numbers would otherwise run into each other, so different queries never normalise to the same
+     * text.
+     */
+    static String normalizeQuery(String query) {
+        StringBuilder normalized = new StringBuilder(query.length());
+        boolean separated = false;
+        int i = 0;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (c == '"') {
+                int end = query.startsWith("\"\"\"", i) ? endOfBlockString(query, i + 3) : endOfString(query, i + 1);
+                normalized.append(query, i, end);
+                separated = false;
+                i = end;
+            } else if (c == '#') {
+                while (i < query.length() && query.charAt(i) != '\n' && query.charAt(i) != '\r') {
+                    i++;
+                }
+                separated = true;
+            } else if (c == ',' || Character.isWhitespace(c) || c == '\uFEFF') {
+                separated = true;
+                i++;
+            } else {
+                if (separated && normalized.length() > 0 && isNameOrNumberPart(normalized.charAt(normalized.length() - 1)) && isNameOrNumberPart(c)) {
+                    normalized.append(' ');
+                }
+                normalized.append(c);
+                separated = false;
+                i++;
+            }
+        }
+        return normalized.toString();
+    }
+
+    private static int endOfString(String query, int i) {
+        while (i < query.length()) {
+            char c = query.charAt(i++);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"' || c == '\n' || c == '\r') {
+                break;
+            }
+        }
+        return Math.min(i, query.length());
+    }
+
+    private static int endOfBlockString(String query, int i) {
+        while (i < query.length()) {
+            if (query.startsWith("\\\"\"\"", i)) {
+                i += 4;
+            } else if (query.startsWith("\"\"\"", i)) {
+                return i + 3;
+            } else {
+                i++;
+            }
+        }
+        return query.length();
+    }
+
+    private static boolean isNameOrNumberPart(char c) {
+        return c == '_' || c == '.' || c == '-' || c == '+' || (c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+
+    private static final class ResponseKey {
+        private final String query;
+        private final Map<String, Object> variables;
+        private final String operationName;
+        private final GraphQLSchema schema;
+        private final String partition;
+        private final int hashCode;
+
+        ResponseKey(String query, Map<String, Object> variables, String operationName, GraphQLSchema schema, String partition) {
+            this.query = query;
+            this.variables = variables;
+            this.operationName = operationName;
+            this.schema = schema;
+            this.partition = partition;
+            this.hashCode = Objects.hash(query, variables, operationName, System.identityHashCode(schema), partition);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ResponseKey)) {
+                return false;
+            }
+
+            ResponseKey that = (ResponseKey) o;
+            return schema == that.schema
+                && query.equals(that.query)
+                && variables.equals(that.variables)
+                && Objects.equals(operationName, that.operationName)
+                && Objects.equals(partition, that.partition);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
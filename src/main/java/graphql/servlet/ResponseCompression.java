@@ -0,0 +1,100 @@
+package graphql.servlet;
+
+import graphql.servlet.internal.CompressingResponse;
+import graphql.servlet.internal.DeflaterPool;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses responses with gzip or deflate, whichever the client prefers according to its {@code Accept-Encoding}
+ * header.  Responses smaller than the minimum size aren't worth the overhead and are sent uncompressed.
+ */
+public class ResponseCompression {
+
+    public static final int DEFAULT_MIN_SIZE = 1024;
+
+    private final int minSize;
+    private final DeflaterPool gzipDeflaters;
+    private final DeflaterPool deflateDeflaters;
+
+    public ResponseCompression() {
+        this(DEFAULT_MIN_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param minSize the number of bytes from which on responses are compressed
+     * @param level   the compression level from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public ResponseCompression(int minSize, int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+
+        this.minSize = minSize;
+        this.gzipDeflaters = new DeflaterPool(level, true);
+        this.deflateDeflaters = new DeflaterPool(level, false);
+    }
+
+    /**
+     * @return a response that compresses its body if the client accepts it, which has to be finished once the body is
+     * complete, or the given response
+     */
+    HttpServletResponse wrap(HttpServletRequest request, HttpServletResponse response) {
+        response.addHeader("Vary", "Accept-Encoding");
+
+        String encoding = negotiate(request.getHeader("Accept-Encoding"));
+        if (encoding == null) {
+            return response;
+        }
+
+        DeflaterPool deflaterPool = CompressingResponse.GZIP.equals(encoding) ? gzipDeflaters : deflateDeflaters;
+        return new CompressingResponse(response, encoding, deflaterPool, minSize);
+    }
+
+    /**
+     * @return the supported encoding with the highest quality value, gzip if both are equally acceptable, or null
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim();
+            float quality = 1;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+
+            if (name.equalsIgnoreCase(CompressingResponse.GZIP) || name.equalsIgnoreCase("x-gzip")) {
+                gzip = quality;
+            } else if (name.equalsIgnoreCase(CompressingResponse.DEFLATE)) {
+                deflate = quality;
+            } else if (name.equals("*")) {
+                any = quality;
+            }
+        }
+
+        // Codings that aren't listed explicitly fall back to the wildcard.
+        gzip = gzip < 0 ? any : gzip;
+        deflate = deflate < 0 ? any : deflate;
+
+        if (gzip > 0 && gzip >= deflate) {
+            return CompressingResponse.GZIP;
+        }
+        return deflate > 0 ? CompressingResponse.DEFLATE : null;
+    }
+}
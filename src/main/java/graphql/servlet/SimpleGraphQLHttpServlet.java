@@ -2,6 +2,9 @@ package graphql.servlet;
 
 import graphql.schema.GraphQLSchema;
 
+import javax.servlet.MultipartConfigElement;
+import java.util.concurrent.ExecutorService;
+
 /**
  * @author Andrew Potter
  */
@@ -10,12 +13,32 @@ public class SimpleGraphQLHttpServlet extends AbstractGraphQLHttpServlet {
     private final GraphQLInvocationInputFactory invocationInputFactory;
     private final GraphQLQueryInvoker queryInvoker;
     private final GraphQLObjectMapper graphQLObjectMapper;
-
-    private SimpleGraphQLHttpServlet(GraphQLInvocationInputFactory invocationInputFactory, GraphQLQueryInvoker queryInvoker, GraphQLObjectMapper graphQLObjectMapper, boolean asyncServletMode) {
-        super(null, asyncServletMode);
+    private final PersistedQueryCache persistedQueryCache;
+    private final ResponseCache responseCache;
+    private final ResponseCompression responseCompression;
+    private final ETagSupport eTagSupport;
+    private final IntrospectionCache introspectionCache;
+    private final MultipartConfigElement multipartConfig;
+    private final boolean batchPipelining;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final ConcurrencyLimiter readOnlyConcurrencyLimiter;
+    private final long maxRequestBodySize;
+
+    private SimpleGraphQLHttpServlet(GraphQLInvocationInputFactory invocationInputFactory, GraphQLQueryInvoker queryInvoker, GraphQLObjectMapper graphQLObjectMapper, PersistedQueryCache persistedQueryCache, ResponseCache responseCache, ResponseCompression responseCompression, ETagSupport eTagSupport, IntrospectionCache introspectionCache, MultipartConfigElement multipartConfig, boolean batchPipelining, ConcurrencyLimiter concurrencyLimiter, ConcurrencyLimiter readOnlyConcurrencyLimiter, long maxRequestBodySize, boolean asyncServletMode, ExecutorService asyncExecutor) {
+        super(null, asyncServletMode, asyncExecutor);
         this.invocationInputFactory = invocationInputFactory;
         this.queryInvoker = queryInvoker;
         this.graphQLObjectMapper = graphQLObjectMapper;
+        this.persistedQueryCache = persistedQueryCache;
+        this.responseCache = responseCache;
+        this.responseCompression = responseCompression;
+        this.eTagSupport = eTagSupport;
+        this.introspectionCache = introspectionCache;
+        this.multipartConfig = multipartConfig;
+        this.batchPipelining = batchPipelining;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.readOnlyConcurrencyLimiter = readOnlyConcurrencyLimiter;
+        this.maxRequestBodySize = maxRequestBodySize;
     }
 
     @Override
@@ -33,6 +56,56 @@ public class SimpleGraphQLHttpServlet extends AbstractGraphQLHttpServlet {
         return graphQLObjectMapper;
     }
 
+    @Override
+    protected PersistedQueryCache getPersistedQueryCache() {
+        return persistedQueryCache;
+    }
+
+    @Override
+    protected ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    @Override
+    protected ResponseCompression getResponseCompression() {
+        return responseCompression;
+    }
+
+    @Override
+    protected ETagSupport getETagSupport() {
+        return eTagSupport;
+    }
+
+    @Override
+    protected IntrospectionCache getIntrospectionCache() {
+        return introspectionCache;
+    }
+
+    @Override
+    public MultipartConfigElement getMultipartConfig() {
+        return multipartConfig;
+    }
+
+    @Override
+    protected boolean isBatchPipelining() {
+        return batchPipelining;
+    }
+
+    @Override
+    protected ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    @Override
+    protected ConcurrencyLimiter getReadOnlyConcurrencyLimiter() {
+        return readOnlyConcurrencyLimiter;
+    }
+
+    @Override
+    protected long getMaxRequestBodySize() {
+        return maxRequestBodySize;
+    }
+
     public static Builder newBuilder(GraphQLSchema schema) {
         return new Builder(GraphQLInvocationInputFactory.newBuilder(schema).build());
     }
@@ -49,7 +122,18 @@ public class SimpleGraphQLHttpServlet extends AbstractGraphQLHttpServlet {
         private final GraphQLInvocationInputFactory invocationInputFactory;
         private GraphQLQueryInvoker queryInvoker = GraphQLQueryInvoker.newBuilder().build();
         private GraphQLObjectMapper graphQLObjectMapper = GraphQLObjectMapper.newBuilder().build();
+        private PersistedQueryCache persistedQueryCache;
+        private ResponseCache responseCache;
+        private ResponseCompression responseCompression;
+        private ETagSupport eTagSupport;
+        private IntrospectionCache introspectionCache;
+        private MultipartConfigElement multipartConfig;
+        private boolean batchPipelining;
+        private ConcurrencyLimiter concurrencyLimiter;
+        private ConcurrencyLimiter readOnlyConcurrencyLimiter;
         private boolean asyncServletMode;
+        private ExecutorService asyncExecutor;
+        private long maxRequestBodySize = DEFAULT_MAX_REQUEST_BODY_SIZE;
 
         Builder(GraphQLInvocationInputFactory invocationInputFactory) {
             this.invocationInputFactory = invocationInputFactory;
@@ -65,13 +149,86 @@ public class SimpleGraphQLHttpServlet extends AbstractGraphQLHttpServlet {
             return this;
         }
 
+        public Builder withPersistedQueryCache(PersistedQueryCache persistedQueryCache) {
+            this.persistedQueryCache = persistedQueryCache;
+            return this;
+        }
+
+        public Builder withResponseCache(ResponseCache responseCache) {
+            this.responseCache = responseCache;
+            return this;
+        }
+
+        public Builder withResponseCompression(ResponseCompression responseCompression) {
+            this.responseCompression = responseCompression;
+            return this;
+        }
+
+        public Builder withETagSupport(ETagSupport eTagSupport) {
+            this.eTagSupport = eTagSupport;
+            return this;
+        }
+
+        public Builder withIntrospectionCache(IntrospectionCache introspectionCache) {
+            this.introspectionCache = introspectionCache;
+            return this;
+        }
+
+        /**
+         * @param multipartConfig the size limits of multipart requests and where their parts are spilled to disk, which
+         *                        also has to be passed to the container when registering the servlet
+         */
+        public Builder withMultipartConfig(MultipartConfigElement multipartConfig) {
+            this.multipartConfig = multipartConfig;
+            return this;
+        }
+
+        /**
+         * Executes the operations of batched POST requests while the rest of the batch is still being read.
+         */
+        public Builder withBatchPipelining(boolean batchPipelining) {
+            this.batchPipelining = batchPipelining;
+            return this;
+        }
+
+        public Builder withConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+            this.concurrencyLimiter = concurrencyLimiter;
+            return this;
+        }
+
+        /**
+         * @param readOnlyConcurrencyLimiter admits GET requests separately from POST requests, which otherwise go
+         *                                   through the same limiter
+         */
+        public Builder withReadOnlyConcurrencyLimiter(ConcurrencyLimiter readOnlyConcurrencyLimiter) {
+            this.readOnlyConcurrencyLimiter = readOnlyConcurrencyLimiter;
+            return this;
+        }
+
         public Builder withAsyncServletMode(boolean asyncServletMode) {
             this.asyncServletMode = asyncServletMode;
             return this;
         }
 
+        /**
+         * @param asyncExecutor runs the requests in async servlet mode, it is shut down when the servlet is destroyed
+         */
+        public Builder withAsyncExecutor(ExecutorService asyncExecutor) {
+            this.asyncExecutor = asyncExecutor;
+            return this;
+        }
+
+        /**
+         * @param maxRequestBodySize the maximum size in bytes of the POST bodies buffered in async servlet mode, 0 for no
+         *                           limit
+         */
+        public Builder withMaxRequestBodySize(long maxRequestBodySize) {
+            this.maxRequestBodySize = maxRequestBodySize;
+            return this;
+        }
+
         public SimpleGraphQLHttpServlet build() {
-            return new SimpleGraphQLHttpServlet(invocationInputFactory, queryInvoker, graphQLObjectMapper, asyncServletMode);
+            return new SimpleGraphQLHttpServlet(invocationInputFactory, queryInvoker, graphQLObjectMapper, persistedQueryCache, responseCache, responseCompression, eTagSupport, introspectionCache, multipartConfig, batchPipelining, concurrencyLimiter, readOnlyConcurrencyLimiter, maxRequestBodySize, asyncServletMode, asyncExecutor);
         }
     }
 }
@@ -0,0 +1,108 @@
+package graphql.servlet;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.util.Locale;
+import java.util.function.Supplier;
+
+/**
+ * The formats requests and responses can be encoded in.  The binary formats carry the same data model as JSON, so
+ * requests and results are mapped the same way whichever format they are in.
+ */
+public enum WireFormat {
+    JSON("application/json", "application/json;charset=UTF-8", JsonFactory::new),
+    CBOR("application/cbor", "application/cbor", CBORFactory::new),
+    SMILE("application/x-jackson-smile", "application/x-jackson-smile", SmileFactory::new);
+
+    private final String mediaType;
+    private final String contentType;
+    private final Supplier<JsonFactory> factory;
+
+    WireFormat(String mediaType, String contentType, Supplier<JsonFactory> factory) {
+        this.mediaType = mediaType;
+        this.contentType = contentType;
+        this.factory = factory;
+    }
+
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * @return the {@code Content-Type} of responses in this format
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    public JsonFactory createFactory() {
+        return factory.get();
+    }
+
+    /**
+     * @return the format of a request body with the given {@code Content-Type}, JSON unless it names a binary format
+     */
+    public static WireFormat forContentType(String contentType) {
+        if (contentType == null) {
+            return JSON;
+        }
+
+        String mediaType = contentType.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+        for (WireFormat format : values()) {
+            if (format.mediaType.equals(mediaType)) {
+                return format;
+            }
+        }
+        return JSON;
+    }
+
+    /**
+     * Binary formats are only chosen when the client lists them explicitly with a quality value at least as high as
+     * JSON's, so wildcards keep getting JSON.
+     *
+     * @return the format responses are encoded in according to the {@code Accept} header
+     */
+    public static WireFormat negotiate(String accept) {
+        if (accept == null) {
+            return JSON;
+        }
+
+        float json = -1;
+        float any = -1;
+        float cbor = -1;
+        float smile = -1;
+        for (String range : accept.split(",")) {
+            String[] parameters = range.split(";");
+            String name = parameters[0].trim().toLowerCase(Locale.ROOT);
+            float quality = 1;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+
+            if (name.equals(JSON.mediaType)) {
+                json = quality;
+            } else if (name.equals(CBOR.mediaType)) {
+                cbor = quality;
+            } else if (name.equals(SMILE.mediaType)) {
+                smile = quality;
+            } else if (name.equals("*/*") || name.equals("application/*")) {
+                any = Math.max(any, quality);
+            }
+        }
+
+        json = json < 0 ? any : json;
+        if (cbor > 0 && cbor >= json && cbor >= smile) {
+            return CBOR;
+        }
+        return smile > 0 && smile >= json ? SMILE : JSON;
+    }
+}
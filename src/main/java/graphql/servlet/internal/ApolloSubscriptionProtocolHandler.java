@@ -3,6 +3,7 @@ package graphql.servlet.internal;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonValue;
+import com.fasterxml.jackson.core.JsonGenerator;
 import graphql.ExecutionResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,6 +12,7 @@ import javax.websocket.CloseReason;
 import javax.websocket.Session;
 import javax.websocket.server.HandshakeRequest;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -94,8 +96,24 @@ public class ApolloSubscriptionProtocolHandler extends SubscriptionProtocolHandl
     }
 
     @Override
-    protected void sendDataMessage(Session session, String id, Object payload) {
-        sendMessage(session, GQL_DATA, id, payload);
+    protected void sendDataMessage(Session session, String id, ExecutionResult executionResult) {
+        // Written by hand so the result goes straight into the payload rather than through an intermediate map.
+        try {
+            StringWriter writer = new StringWriter();
+            try (JsonGenerator generator = input.getGraphQLObjectMapper().getJacksonMapper().getFactory().createGenerator(writer)) {
+                generator.writeStartObject();
+                generator.writeStringField("type", GQL_DATA.getType());
+                if (id != null) {
+                    generator.writeStringField("id", id);
+                }
+                generator.writeFieldName("payload");
+                input.getGraphQLObjectMapper().serializeResultAsJson(generator, executionResult);
+                generator.writeEndObject();
+            }
+            session.getBasicRemote().sendText(writer.toString());
+        } catch (IOException e) {
+            throw new RuntimeException("Error sending subscription response", e);
+        }
     }
 
     @Override
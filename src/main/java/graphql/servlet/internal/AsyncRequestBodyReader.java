@@ -0,0 +1,68 @@
+package graphql.servlet.internal;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Collects a request body into a {@link ChunkedBuffer} as the container makes it available, without holding a thread
+ * while the client is still sending.  Reading stops with a {@link RequestBodyTooLargeException} as soon as the body
+ * exceeds the maximum size.
+ */
+public class AsyncRequestBodyReader implements ReadListener {
+
+    private final ServletInputStream inputStream;
+    private final ChunkedBuffer body;
+    private final long maxSize;
+    private final Runnable onAllDataRead;
+    private final Consumer<Throwable> onError;
+    private boolean failed;
+
+    /**
+     * @param maxSize the maximum size of the body in bytes, 0 for no limit
+     */
+    public AsyncRequestBodyReader(ServletInputStream inputStream, ChunkedBuffer body, long maxSize, Runnable onAllDataRead, Consumer<Throwable> onError) {
+        this.inputStream = inputStream;
+        this.body = body;
+        this.maxSize = maxSize;
+        this.onAllDataRead = onAllDataRead;
+        this.onError = onError;
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException {
+        while (!failed && inputStream.isReady() && !inputStream.isFinished()) {
+            // One byte more than allowed is enough to tell the body is too large.
+            int maxLength = maxSize > 0 ? (int) Math.min(Integer.MAX_VALUE, maxSize - body.size() + 1) : Integer.MAX_VALUE;
+            if (body.readFrom(inputStream, maxLength) == -1) {
+                return;
+            }
+
+            if (maxSize > 0 && body.size() > maxSize) {
+                onError(new RequestBodyTooLargeException(maxSize));
+            }
+        }
+    }
+
+    @Override
+    public void onAllDataRead() {
+        if (!failed) {
+            onAllDataRead.run();
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        if (!failed) {
+            failed = true;
+            onError.accept(t);
+        }
+    }
+
+    public static class RequestBodyTooLargeException extends IOException {
+        public RequestBodyTooLargeException(long maxSize) {
+            super("The request body exceeds the maximum size of " + maxSize + " bytes");
+        }
+    }
+}
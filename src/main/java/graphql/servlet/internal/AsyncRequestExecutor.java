@@ -0,0 +1,105 @@
+package graphql.servlet.internal;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the requests of a servlet in async mode and keeps track of how busy it is.
+ */
+public class AsyncRequestExecutor {
+
+    public static final int DEFAULT_THREADS = Math.max(8, 2 * Runtime.getRuntime().availableProcessors());
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private final ExecutorService executorService;
+
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder queueWaitNanos = new LongAdder();
+
+    public AsyncRequestExecutor(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    /**
+     * @return a pool of {@link #DEFAULT_THREADS} daemon threads that rejects requests once {@link #DEFAULT_QUEUE_SIZE} are waiting
+     */
+    public static ExecutorService newDefaultExecutorService() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "graphql-servlet-async-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(DEFAULT_QUEUE_SIZE), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @throws RejectedExecutionException if the executor is saturated or shut down
+     */
+    public void execute(Runnable request) {
+        long submitted = System.nanoTime();
+        try {
+            executorService.execute(() -> {
+                queueWaitNanos.add(System.nanoTime() - submitted);
+                activeWorkers.incrementAndGet();
+                try {
+                    request.run();
+                } finally {
+                    activeWorkers.decrementAndGet();
+                    executed.increment();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+    }
+
+    public int getActiveWorkers() {
+        return activeWorkers.get();
+    }
+
+    public long getExecutedCount() {
+        return executed.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the total time requests spent waiting for a worker
+     */
+    public long getQueueWaitTime(TimeUnit unit) {
+        return unit.convert(queueWaitNanos.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops accepting requests and waits a while for the running ones to finish.
+     */
+    public void shutdown() {
+        executorService.shutdown();
+        try {
+            if (!executorService.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                executorService.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
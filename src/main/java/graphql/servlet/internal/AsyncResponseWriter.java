@@ -0,0 +1,50 @@
+package graphql.servlet.internal;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Writes a buffered response body chunk by chunk whenever the container can take more, without holding a thread while
+ * a slow client is downloading.
+ */
+public class AsyncResponseWriter implements WriteListener {
+
+    private final ServletOutputStream outputStream;
+    private final ChunkedBuffer body;
+    private final Runnable onAllDataWritten;
+    private final Consumer<Throwable> onError;
+
+    private int chunk;
+    private boolean done;
+
+    public AsyncResponseWriter(ServletOutputStream outputStream, ChunkedBuffer body, Runnable onAllDataWritten, Consumer<Throwable> onError) {
+        this.outputStream = outputStream;
+        this.body = body;
+        this.onAllDataWritten = onAllDataWritten;
+        this.onError = onError;
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        while (!done && outputStream.isReady()) {
+            if (chunk == body.getChunkCount()) {
+                done = true;
+                onAllDataWritten.run();
+                return;
+            }
+
+            outputStream.write(body.getChunk(chunk), 0, body.getChunkLength(chunk));
+            chunk++;
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        if (!done) {
+            done = true;
+            onError.accept(t);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package graphql.servlet.internal;
+
+import org.dataloader.DataLoader;
+import org.dataloader.DataLoaderRegistry;
+import org.dataloader.stats.Statistics;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Coordinates the dispatching of a {@link DataLoaderRegistry} shared by all operations of a batch.
+ *
+ * Every operation gets its own view of the registry from {@link #newOperationRegistry()} to hand to its
+ * {@link graphql.execution.instrumentation.dataloader.DataLoaderDispatcherInstrumentation}.  A view doesn't dispatch
+ * right away when the instrumentation asks it to; the shared registry is only dispatched once every operation that is
+ * still running is waiting for it, so a key requested by several operations is loaded once.
+ */
+public class BatchDataLoaderDispatcher {
+
+    private final DataLoaderRegistry registry;
+    private final Set<OperationRegistry> waiting = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private int running;
+
+    public BatchDataLoaderDispatcher(DataLoaderRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Registers a new running operation.  All operations have to be registered before the first one starts executing.
+     *
+     * @return the registry view to use for the operation
+     */
+    public synchronized DataLoaderRegistry newOperationRegistry() {
+        running++;
+        return new OperationRegistry();
+    }
+
+    /**
+     * @param operationRegistry the view of the operation that finished executing
+     */
+    public void operationCompleted(DataLoaderRegistry operationRegistry) {
+        synchronized (this) {
+            running--;
+            waiting.remove(operationRegistry);
+            if (!takeDispatch()) {
+                return;
+            }
+        }
+
+        registry.dispatchAll();
+    }
+
+    private void requestDispatch(OperationRegistry operationRegistry) {
+        synchronized (this) {
+            waiting.add(operationRegistry);
+            if (!takeDispatch()) {
+                return;
+            }
+        }
+
+        // Outside of the lock: dispatching completes futures, which may re-enter this method from this or other threads.
+        registry.dispatchAll();
+    }
+
+    private boolean takeDispatch() {
+        if (running == 0 || waiting.size() < running) {
+            return false;
+        }
+
+        waiting.clear();
+        return true;
+    }
+
+    private class OperationRegistry extends DataLoaderRegistry {
+
+        @Override
+        public DataLoaderRegistry register(String key, DataLoader<?, ?> dataLoader) {
+            registry.register(key, dataLoader);
+            return this;
+        }
+
+        @Override
+        public DataLoaderRegistry unregister(String key) {
+            registry.unregister(key);
+            return this;
+        }
+
+        @Override
+        public List<DataLoader<?, ?>> getDataLoaders() {
+            return registry.getDataLoaders();
+        }
+
+        @Override
+        public <K, V> DataLoader<K, V> getDataLoader(String key) {
+            return registry.getDataLoader(key);
+        }
+
+        @Override
+        public Set<String> getKeys() {
+            return registry.getKeys();
+        }
+
+        @Override
+        public void dispatchAll() {
+            requestDispatch(this);
+        }
+
+        @Override
+        public Statistics getStatistics() {
+            return registry.getStatistics();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package graphql.servlet.internal;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of equally sized byte arrays, so request bodies and responses don't allocate fresh buffers for every
+ * request.  Buffers that don't fit into the pool anymore are left to the garbage collector.
+ */
+public class BufferPool {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+    public static final int DEFAULT_MAX_POOLED = 256;
+
+    private final int bufferSize;
+    private final BlockingQueue<byte[]> buffers;
+
+    public BufferPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+    }
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    public byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer.length == bufferSize) {
+            buffers.offer(buffer);
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,82 @@
+package graphql.servlet.internal;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A request whose body has already been read into a {@link ChunkedBuffer}.
+ */
+public class BufferedBodyRequest extends HttpServletRequestWrapper {
+
+    private final ChunkedBuffer body;
+
+    public BufferedBodyRequest(HttpServletRequest request, ChunkedBuffer body) {
+        super(request);
+        this.body = body;
+    }
+
+    @Override
+    public ServletInputStream getInputStream() {
+        InputStream inputStream = body.newInputStream();
+        return new ServletInputStream() {
+            @Override
+            public int read() throws IOException {
+                return inputStream.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return inputStream.read(b, off, len);
+            }
+
+            @Override
+            public int available() throws IOException {
+                return inputStream.available();
+            }
+
+            @Override
+            public boolean isFinished() {
+                try {
+                    return inputStream.available() == 0;
+                } catch (IOException e) {
+                    return true;
+                }
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+                throw new IllegalStateException("The request body has already been read");
+            }
+        };
+    }
+
+    @Override
+    public BufferedReader getReader() {
+        String encoding = getCharacterEncoding();
+        Charset charset = encoding != null ? Charset.forName(encoding) : StandardCharsets.UTF_8;
+        return new BufferedReader(new InputStreamReader(getInputStream(), charset));
+    }
+
+    @Override
+    public int getContentLength() {
+        return body.size();
+    }
+
+    @Override
+    public long getContentLengthLong() {
+        return body.size();
+    }
+}
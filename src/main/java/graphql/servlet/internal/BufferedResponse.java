@@ -0,0 +1,94 @@
+package graphql.servlet.internal;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A response whose body is collected in a {@link ChunkedBuffer} instead of being written to the client, so it can be
+ * written later by an {@link AsyncResponseWriter}.  Status and headers go to the wrapped response right away.
+ */
+public class BufferedResponse extends HttpServletResponseWrapper {
+
+    private final ChunkedBuffer body;
+    private final ServletOutputStream outputStream;
+
+    private PrintWriter writer;
+
+    public BufferedResponse(HttpServletResponse response, ChunkedBuffer body) {
+        super(response);
+        this.body = body;
+        this.outputStream = new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                body.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                body.write(b, off, len);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                throw new IllegalStateException("The response is written once it is complete");
+            }
+        };
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+        if (writer == null) {
+            String encoding = getCharacterEncoding();
+            Charset charset = encoding != null ? Charset.forName(encoding) : StandardCharsets.UTF_8;
+            writer = new PrintWriter(new OutputStreamWriter(outputStream, charset));
+        }
+        return writer;
+    }
+
+    @Override
+    public void flushBuffer() {
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+        body.release();
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        body.release();
+    }
+
+    /**
+     * @return the complete body
+     */
+    public ChunkedBuffer finish() {
+        flushBuffer();
+        return body;
+    }
+
+    public void release() {
+        body.release();
+    }
+}
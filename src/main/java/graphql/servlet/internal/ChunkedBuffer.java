@@ -0,0 +1,155 @@
+package graphql.servlet.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A growable byte buffer made of chunks taken from a {@link BufferPool}.  Unlike a {@code ByteArrayOutputStream} it
+ * never copies what it holds when it grows.  {@link #release()} hands the chunks back to the pool; the buffer must not be
+ * used afterwards.
+ */
+public class ChunkedBuffer extends OutputStream {
+
+    private final BufferPool pool;
+    private final List<byte[]> chunks = new ArrayList<>();
+
+    private int size;
+
+    public ChunkedBuffer(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        byte[] chunk = currentChunk();
+        chunk[size++ % chunk.length] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            byte[] chunk = currentChunk();
+            int position = size % chunk.length;
+            int length = Math.min(len, chunk.length - position);
+            System.arraycopy(b, off, chunk, position, length);
+            size += length;
+            off += length;
+            len -= length;
+        }
+    }
+
+    /**
+     * Reads once from the stream straight into the free space of the current chunk.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    public int readFrom(InputStream inputStream) throws IOException {
+        return readFrom(inputStream, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads once from the stream, at most {@code maxLength} bytes, straight into the free space of the current chunk.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    public int readFrom(InputStream inputStream, int maxLength) throws IOException {
+        byte[] chunk = currentChunk();
+        int position = size % chunk.length;
+        int read = inputStream.read(chunk, position, Math.min(chunk.length - position, maxLength));
+        if (read > 0) {
+            size += read;
+        }
+        return read;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of chunks holding data
+     */
+    public int getChunkCount() {
+        return chunks.size();
+    }
+
+    /**
+     * @return the number of bytes used in the chunk with the given index
+     */
+    public int getChunkLength(int index) {
+        int chunkSize = pool.getBufferSize();
+        return Math.min(chunkSize, size - index * chunkSize);
+    }
+
+    public byte[] getChunk(int index) {
+        return chunks.get(index);
+    }
+
+    public void writeTo(OutputStream outputStream) throws IOException {
+        for (int i = 0; i < chunks.size(); i++) {
+            outputStream.write(chunks.get(i), 0, getChunkLength(i));
+        }
+    }
+
+    /**
+     * @return a copy of what the buffer holds
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[size];
+        for (int i = 0, position = 0; i < chunks.size(); position += getChunkLength(i), i++) {
+            System.arraycopy(chunks.get(i), 0, bytes, position, getChunkLength(i));
+        }
+        return bytes;
+    }
+
+    public InputStream newInputStream() {
+        return new InputStream() {
+            private int position;
+
+            @Override
+            public int read() {
+                if (position >= size) {
+                    return -1;
+                }
+                int chunkSize = pool.getBufferSize();
+                return chunks.get(position / chunkSize)[position++ % chunkSize] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (position >= size) {
+                    return -1;
+                }
+                int chunkSize = pool.getBufferSize();
+                int length = Math.min(len, Math.min(size - position, chunkSize - position % chunkSize));
+                System.arraycopy(chunks.get(position / chunkSize), position % chunkSize, b, off, length);
+                position += length;
+                return length;
+            }
+
+            @Override
+            public int available() {
+                return size - position;
+            }
+        };
+    }
+
+    public void release() {
+        chunks.forEach(pool::release);
+        chunks.clear();
+        size = 0;
+    }
+
+    private byte[] currentChunk() {
+        if (size == chunks.size() * pool.getBufferSize()) {
+            chunks.add(pool.acquire());
+        }
+        return chunks.get(chunks.size() - 1);
+    }
+}
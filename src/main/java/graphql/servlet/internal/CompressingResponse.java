@@ -0,0 +1,234 @@
+package graphql.servlet.internal;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A response whose body is compressed with gzip or deflate as it is written.  The first {@code minSize} bytes are held
+ * back, so bodies smaller than that are sent as they are; {@link #finish()} has to be called once the body is complete.
+ *
+ * Flushing the output stream flushes everything compressed so far, so streamed responses still reach the client in
+ * pieces.
+ */
+public class CompressingResponse extends HttpServletResponseWrapper {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private final String encoding;
+    private final DeflaterPool deflaterPool;
+    private final byte[] pending;
+    private final ServletOutputStream outputStream;
+
+    private int pendingLength;
+    private PrintWriter writer;
+    private Deflater deflater;
+    private DeflaterOutputStream deflaterStream;
+    private CRC32 crc;
+    private boolean finished;
+
+    /**
+     * @param encoding either {@link #GZIP} or {@link #DEFLATE}, the deflaters of the pool have to match it
+     */
+    public CompressingResponse(HttpServletResponse response, String encoding, DeflaterPool deflaterPool, int minSize) {
+        super(response);
+        this.encoding = encoding;
+        this.deflaterPool = deflaterPool;
+        this.pending = new byte[Math.max(0, minSize)];
+        this.outputStream = new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                CompressingResponse.this.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (deflaterStream != null) {
+                    deflaterStream.flush();
+                }
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                throw new IllegalStateException("Compressed responses are written blocking");
+            }
+        };
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+        if (writer == null) {
+            String characterEncoding = getCharacterEncoding();
+            Charset charset = characterEncoding != null ? Charset.forName(characterEncoding) : StandardCharsets.UTF_8;
+            writer = new PrintWriter(new OutputStreamWriter(outputStream, charset));
+        }
+        return writer;
+    }
+
+    /**
+     * Ignored, the length is only known once the body is complete.
+     */
+    @Override
+    public void setContentLength(int len) {
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        outputStream.flush();
+    }
+
+    @Override
+    public void resetBuffer() {
+        super.resetBuffer();
+        pendingLength = 0;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        pendingLength = 0;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Writes a body that is already compressed with the encoding of this response and finishes the response.
+     */
+    public void writeEncoded(byte[] body) throws IOException {
+        if (finished || pendingLength > 0 || deflaterStream != null) {
+            throw new IllegalStateException("The response has already been written to");
+        }
+        finished = true;
+
+        setEncodingHeaders();
+        super.setContentLength(body.length);
+        super.getOutputStream().write(body);
+    }
+
+    /**
+     * Writes whatever is still held back and releases the deflater.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        if (writer != null) {
+            writer.flush();
+        }
+
+        if (deflaterStream == null) {
+            if (pendingLength > 0) {
+                super.setContentLength(pendingLength);
+                super.getOutputStream().write(pending, 0, pendingLength);
+            }
+            return;
+        }
+
+        try {
+            deflaterStream.finish();
+            if (crc != null) {
+                OutputStream out = super.getOutputStream();
+                writeIntLE(out, (int) crc.getValue());
+                writeIntLE(out, (int) deflater.getBytesRead());
+            }
+        } finally {
+            deflaterPool.release(deflater);
+            deflater = null;
+        }
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("The response is already finished");
+        }
+
+        if (deflaterStream == null) {
+            if (pendingLength + len < pending.length) {
+                System.arraycopy(b, off, pending, pendingLength, len);
+                pendingLength += len;
+                return;
+            }
+
+            startCompression();
+            compress(pending, 0, pendingLength);
+        }
+
+        compress(b, off, len);
+    }
+
+    private void startCompression() throws IOException {
+        setEncodingHeaders();
+
+        OutputStream out = super.getOutputStream();
+        if (GZIP.equals(encoding)) {
+            out.write(GZIP_HEADER);
+            crc = new CRC32();
+        }
+
+        deflater = deflaterPool.acquire();
+        deflaterStream = new DeflaterOutputStream(out, deflater, BufferPool.DEFAULT_BUFFER_SIZE, true);
+    }
+
+    private void setEncodingHeaders() {
+        setHeader("Content-Encoding", encoding);
+
+        // The compressed body is a different representation, so it mustn't share a strong ETag with the plain one.
+        String eTag = getHeader("ETag");
+        if (eTag != null && eTag.endsWith("\"")) {
+            setHeader("ETag", eTag.substring(0, eTag.length() - 1) + "-" + encoding + "\"");
+        }
+    }
+
+    private void compress(byte[] b, int off, int len) throws IOException {
+        if (crc != null) {
+            crc.update(b, off, len);
+        }
+        deflaterStream.write(b, off, len);
+    }
+
+    private static void writeIntLE(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+}
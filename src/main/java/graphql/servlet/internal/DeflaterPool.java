@@ -0,0 +1,44 @@
+package graphql.servlet.internal;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * A bounded pool of {@link Deflater}s with the same settings.  Deflaters hold native memory that is only freed by
+ * {@link Deflater#end()} or finalization, so reusing them keeps compressed responses from churning through it.
+ * Deflaters that don't fit into the pool anymore are ended right away.
+ */
+public class DeflaterPool {
+
+    public static final int DEFAULT_MAX_POOLED = 64;
+
+    private final int level;
+    private final boolean nowrap;
+    private final BlockingQueue<Deflater> deflaters;
+
+    public DeflaterPool(int level, boolean nowrap) {
+        this(level, nowrap, DEFAULT_MAX_POOLED);
+    }
+
+    /**
+     * @param nowrap true for raw deflate data as used by gzip, false for the zlib format
+     */
+    public DeflaterPool(int level, boolean nowrap, int maxPooled) {
+        this.level = level;
+        this.nowrap = nowrap;
+        this.deflaters = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    public Deflater acquire() {
+        Deflater deflater = deflaters.poll();
+        return deflater != null ? deflater : new Deflater(level, nowrap);
+    }
+
+    public void release(Deflater deflater) {
+        deflater.reset();
+        if (!deflaters.offer(deflater)) {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package graphql.servlet.internal;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import graphql.ExecutionResult;
+import graphql.GraphQLError;
+import graphql.servlet.GraphQLErrorHandler;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Writes an {@link ExecutionResult} as a response: {@code data}, the errors as processed by the
+ * {@link GraphQLErrorHandler} and {@code extensions}, straight to the generator.  Results without errors don't even get
+ * an error handler, so writing them allocates nothing beyond what serializing the data takes.
+ */
+public class ExecutionResultSerializer extends StdSerializer<ExecutionResult> {
+
+    private final Supplier<GraphQLErrorHandler> errorHandlerSupplier;
+    private final boolean resultTreeWriter;
+
+    public ExecutionResultSerializer(Supplier<GraphQLErrorHandler> errorHandlerSupplier) {
+        this(errorHandlerSupplier, false);
+    }
+
+    /**
+     * @param resultTreeWriter whether {@code data} and {@code extensions} are written with the {@link ResultTreeWriter}
+     */
+    public ExecutionResultSerializer(Supplier<GraphQLErrorHandler> errorHandlerSupplier, boolean resultTreeWriter) {
+        super(ExecutionResult.class);
+        this.errorHandlerSupplier = errorHandlerSupplier;
+        this.resultTreeWriter = resultTreeWriter;
+    }
+
+    @Override
+    public void serialize(ExecutionResult executionResult, JsonGenerator generator, SerializerProvider provider) throws IOException {
+        generator.writeStartObject();
+
+        writeTree("data", executionResult.getData(), generator, provider);
+
+        List<GraphQLError> errors = executionResult.getErrors();
+        if (errors != null && !errors.isEmpty()) {
+            GraphQLErrorHandler errorHandler = errorHandlerSupplier.get();
+            if (errorHandler.errorsPresent(errors)) {
+                List<GraphQLError> processedErrors = errorHandler.processErrors(errors);
+                if (errorHandler.errorsPresent(processedErrors)) {
+                    provider.defaultSerializeField("errors", processedErrors, generator);
+                }
+            }
+        }
+
+        Map<Object, Object> extensions = executionResult.getExtensions();
+        if (extensions != null) {
+            writeTree("extensions", extensions, generator, provider);
+        }
+
+        generator.writeEndObject();
+    }
+
+    private void writeTree(String fieldName, Object value, JsonGenerator generator, SerializerProvider provider) throws IOException {
+        if (resultTreeWriter) {
+            generator.writeFieldName(fieldName);
+            ResultTreeWriter.write(value, generator, provider);
+        } else {
+            provider.defaultSerializeField(fieldName, value, generator);
+        }
+    }
+}
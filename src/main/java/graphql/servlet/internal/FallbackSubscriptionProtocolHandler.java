@@ -1,5 +1,7 @@
 package graphql.servlet.internal;
 
+import graphql.ExecutionResult;
+
 import javax.websocket.Session;
 import javax.websocket.server.HandshakeRequest;
 import java.io.IOException;
@@ -31,9 +33,9 @@ public class FallbackSubscriptionProtocolHandler extends SubscriptionProtocolHan
     }
 
     @Override
-    protected void sendDataMessage(Session session, String id, Object payload) {
+    protected void sendDataMessage(Session session, String id, ExecutionResult executionResult) {
         try {
-            session.getBasicRemote().sendText(input.getGraphQLObjectMapper().getJacksonMapper().writeValueAsString(payload));
+            session.getBasicRemote().sendText(input.getGraphQLObjectMapper().serializeResultAsJson(executionResult));
         } catch (IOException e) {
             throw new RuntimeException("Error sending subscription response", e);
         }
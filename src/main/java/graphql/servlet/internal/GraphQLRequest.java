@@ -15,6 +15,7 @@ public class GraphQLRequest {
     @JsonDeserialize(using = VariablesDeserializer.class)
     private Map<String, Object> variables = new HashMap<>();
     private String operationName;
+    private Map<String, Object> extensions;
 
     public GraphQLRequest() {
     }
@@ -52,6 +53,14 @@ public class GraphQLRequest {
     public void setOperationName(String operationName) {
         this.operationName = operationName;
     }
+
+    public Map<String, Object> getExtensions() {
+        return extensions;
+    }
+
+    public void setExtensions(Map<String, Object> extensions) {
+        this.extensions = extensions;
+    }
 }
 
 
@@ -0,0 +1,97 @@
+package graphql.servlet.internal;
+
+import javax.servlet.http.Part;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helpers for the GraphQL multipart request spec, where an {@code operations} part carries the requests with null
+ * placeholders for the files, and a {@code map} part tells which file part goes to which placeholder, e.g.
+ * {@code "variables.files.1"} for a single request or {@code "0.variables.file"} for a batch.
+ *
+ * The placeholders are replaced by the {@link Part}s themselves, which resolvers open only when they read the file.
+ */
+public final class MultipartUploads {
+
+    private MultipartUploads() {
+    }
+
+    public static void mapUpload(GraphQLRequest request, String path, Part part) {
+        String[] segments = path.split("\\.");
+        setUpload(request, segments, 0, path, part);
+    }
+
+    public static void mapUpload(List<GraphQLRequest> requests, String path, Part part) {
+        String[] segments = path.split("\\.");
+        int index = parseIndex(segments[0], requests.size(), path);
+        setUpload(requests.get(index), segments, 1, path, part);
+    }
+
+    /**
+     * Deletes the parts, including any temporary files the container has written them to.  This is best effort, a part
+     * failing to delete doesn't keep the others from being deleted.
+     *
+     * @return the first failure to delete a part, or null
+     */
+    public static Exception delete(Collection<Part> parts) {
+        Exception failure = null;
+        for (Part part : parts) {
+            try {
+                part.delete();
+            } catch (IOException | RuntimeException e) {
+                failure = failure != null ? failure : e;
+            }
+        }
+        return failure;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void setUpload(GraphQLRequest request, String[] segments, int from, String path, Part part) {
+        if (segments.length < from + 2 || !segments[from].equals("variables") || request.getVariables() == null) {
+            throw new IllegalArgumentException("Invalid upload path: " + path);
+        }
+
+        Object parent = request.getVariables();
+        for (int i = from + 1; i < segments.length; i++) {
+            boolean last = i == segments.length - 1;
+            if (parent instanceof Map) {
+                Map<String, Object> map = (Map<String, Object>) parent;
+                if (!map.containsKey(segments[i])) {
+                    throw new IllegalArgumentException("Invalid upload path: " + path);
+                }
+
+                if (last) {
+                    map.put(segments[i], part);
+                } else {
+                    parent = map.get(segments[i]);
+                }
+            } else if (parent instanceof List) {
+                List<Object> list = (List<Object>) parent;
+                int index = parseIndex(segments[i], list.size(), path);
+
+                if (last) {
+                    list.set(index, part);
+                } else {
+                    parent = list.get(index);
+                }
+            } else {
+                throw new IllegalArgumentException("Invalid upload path: " + path);
+            }
+        }
+    }
+
+    private static int parseIndex(String segment, int size, String path) {
+        try {
+            int index = Integer.parseInt(segment);
+            if (index >= 0 && index < size) {
+                return index;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+
+        throw new IllegalArgumentException("Invalid upload path: " + path);
+    }
+}
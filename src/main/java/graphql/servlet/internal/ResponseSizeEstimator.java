@@ -0,0 +1,65 @@
+package graphql.servlet.internal;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a moving average of the response size of every operation, so that responses expected to be too large to buffer
+ * can be streamed right away.  Operations are identified by a digest of their query, so that no query text is kept, and only the most recently
+ * used ones are kept.
+ */
+public class ResponseSizeEstimator {
+
+    public static final int DEFAULT_INITIAL_ESTIMATE = 1024;
+    public static final int DEFAULT_MAX_OPERATIONS = 1000;
+
+    // Every response moves the average an eighth of the way towards its size.
+    private static final int WEIGHT = 8;
+
+    private final int initialEstimate;
+    private final Cache<HashCode, AtomicInteger> averages;
+
+    public ResponseSizeEstimator() {
+        this(DEFAULT_INITIAL_ESTIMATE, DEFAULT_MAX_OPERATIONS);
+    }
+
+    public ResponseSizeEstimator(int initialEstimate, int maxOperations) {
+        this.initialEstimate = initialEstimate;
+        this.averages = CacheBuilder.newBuilder().maximumSize(maxOperations).build();
+    }
+
+    /**
+     * @return the key of the operation with the query, or null if there is no query
+     */
+    public static HashCode operationKey(String query) {
+        return query != null ? Hashing.murmur3_128().hashString(query, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * @return the expected size of the next response to the operation in bytes
+     */
+    public int estimate(HashCode operation) {
+        AtomicInteger average = operation != null ? averages.getIfPresent(operation) : null;
+        return average != null ? average.get() : initialEstimate;
+    }
+
+    public void record(HashCode operation, int size) {
+        if (operation == null) {
+            return;
+        }
+
+        AtomicInteger average;
+        try {
+            average = averages.get(operation, () -> new AtomicInteger(size));
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        average.updateAndGet(current -> current + (size - current) / WEIGHT);
+    }
+}
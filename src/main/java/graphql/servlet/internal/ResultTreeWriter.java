@@ -0,0 +1,85 @@
+package graphql.servlet.internal;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the trees of maps, lists, strings, numbers and booleans that make up the data of a result straight to the
+ * generator, telling the node types apart with {@code instanceof} rather than looking up a serializer for every value.
+ * Anything else, e.g. the value of a custom scalar, is serialized by the {@link SerializerProvider}.
+ *
+ * Unlike the provider it ignores inclusion rules and map ordering configured on the {@code ObjectMapper}, which is why
+ * it has to be enabled explicitly.
+ */
+public final class ResultTreeWriter {
+
+    private ResultTreeWriter() {
+    }
+
+    public static void write(Object value, JsonGenerator generator, SerializerProvider provider) throws IOException {
+        // Checks against classes are cheap, those against interfaces scan the implemented interfaces when they fail.  So
+        // the final scalar classes and the maps and lists graphql-java builds results from are checked first.
+        if (value == null) {
+            generator.writeNull();
+        } else if (value instanceof String) {
+            generator.writeString((String) value);
+        } else if (value instanceof Integer) {
+            generator.writeNumber((Integer) value);
+        } else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        } else if (value instanceof Long) {
+            generator.writeNumber((Long) value);
+        } else if (value instanceof Double) {
+            generator.writeNumber((Double) value);
+        } else if (value instanceof LinkedHashMap) {
+            writeMap((Map<?, ?>) value, generator, provider);
+        } else if (value instanceof ArrayList) {
+            writeList((List<?>) value, generator, provider);
+        } else if (value instanceof Map) {
+            writeMap((Map<?, ?>) value, generator, provider);
+        } else if (value instanceof List) {
+            writeList((List<?>) value, generator, provider);
+        } else if (value instanceof Float) {
+            generator.writeNumber((Float) value);
+        } else if (value instanceof Short || value instanceof Byte) {
+            generator.writeNumber(((Number) value).intValue());
+        } else if (value instanceof BigDecimal) {
+            generator.writeNumber((BigDecimal) value);
+        } else if (value instanceof BigInteger) {
+            generator.writeNumber((BigInteger) value);
+        } else {
+            provider.defaultSerializeValue(value, generator);
+        }
+    }
+
+    private static void writeMap(Map<?, ?> map, JsonGenerator generator, SerializerProvider provider) throws IOException {
+        generator.writeStartObject();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            generator.writeFieldName(String.valueOf(entry.getKey()));
+            write(entry.getValue(), generator, provider);
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeList(List<?> list, JsonGenerator generator, SerializerProvider provider) throws IOException {
+        generator.writeStartArray();
+        if (list instanceof ArrayList) {
+            for (int i = 0, size = list.size(); i < size; i++) {
+                write(list.get(i), generator, provider);
+            }
+        } else {
+            for (Object element : list) {
+                write(element, generator, provider);
+            }
+        }
+        generator.writeEndArray();
+    }
+}
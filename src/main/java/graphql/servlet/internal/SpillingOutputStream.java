@@ -0,0 +1,77 @@
+package graphql.servlet.internal;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Collects a response body in a {@link ChunkedBuffer} until it grows past a limit.  Past it, what has been collected is
+ * written to the response and the rest is streamed, so that only responses small enough to buffer get an exact
+ * {@code Content-Length}.
+ */
+public class SpillingOutputStream extends OutputStream {
+
+    private final ChunkedBuffer buffer;
+    private final int limit;
+    private final HttpServletResponse response;
+
+    private OutputStream out;
+    private long count;
+
+    public SpillingOutputStream(ChunkedBuffer buffer, int limit, HttpServletResponse response) {
+        this.buffer = buffer;
+        this.limit = limit;
+        this.response = response;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        count++;
+        if (out != null) {
+            out.write(b);
+        } else {
+            buffer.write(b);
+            spillIfFull();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        count += len;
+        if (out != null) {
+            out.write(b, off, len);
+        } else {
+            buffer.write(b, off, len);
+            spillIfFull();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * @return whether the body went past the limit and is being streamed to the response
+     */
+    public boolean isSpilled() {
+        return out != null;
+    }
+
+    /**
+     * @return the number of bytes written so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+    private void spillIfFull() throws IOException {
+        if (buffer.size() > limit) {
+            out = response.getOutputStream();
+            buffer.writeTo(out);
+            buffer.release();
+        }
+    }
+}
@@ -9,8 +9,6 @@ import org.slf4j.LoggerFactory;
 
 import javax.websocket.Session;
 import javax.websocket.server.HandshakeRequest;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -22,7 +20,7 @@ public abstract class SubscriptionProtocolHandler {
 
     public abstract void onMessage(HandshakeRequest request, Session session, WsSessionSubscriptions subscriptions, String text) throws Exception;
 
-    protected abstract void sendDataMessage(Session session, String id, Object payload);
+    protected abstract void sendDataMessage(Session session, String id, ExecutionResult executionResult);
 
     protected abstract void sendErrorMessage(Session session, String id);
 
@@ -47,9 +45,7 @@ public abstract class SubscriptionProtocolHandler {
                 @Override
                 public void onNext(ExecutionResult executionResult) {
                     subscriptionReference.get().request(1);
-                    Map<String, Object> result = new HashMap<>();
-                    result.put("data", executionResult.getData());
-                    sendDataMessage(session, id, result);
+                    sendDataMessage(session, id, executionResult);
                 }
 
                 @Override
@@ -1,21 +1,46 @@
 package graphql.servlet.internal;
 
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationConfig;
 import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
 /**
+ * Reads variables, sent either as an object or as a string of JSON, straight from the tokens into maps, lists and
+ * scalars.  A string is parsed in place rather than read as a value first, so neither form is read twice.  Null, in
+ * either form, means there are no variables.
+ *
+ * The {@link Limits} to check are taken from the {@code Limits} attribute of the reader, if it has one.
+ *
  * @author Andrew Potter
  */
 public class VariablesDeserializer extends JsonDeserializer<Map<String, Object>> {
     @Override
     public Map<String, Object> deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
-        return deserializeVariablesObject(p.readValueAs(Object.class), (ObjectMapper) ctxt.findInjectableValue(ObjectMapper.class.getName(), null, null));
+        Limits limits = (Limits) ctxt.getAttribute(Limits.class);
+        Supplier<JsonFactory> stringFactory = () -> ((ObjectMapper) ctxt.findInjectableValue(ObjectMapper.class.getName(), null, null)).getFactory();
+        return new Reader(ctxt.getConfig(), limits != null ? limits : Limits.NONE, stringFactory).readVariables(p);
+    }
+
+    /**
+     * Reads the variables at the current token of the parser, or at the next one if there is none.  Variables sent as a
+     * string are parsed with the mapper's factory.
+     */
+    public static Map<String, Object> readVariables(JsonParser p, ObjectMapper mapper, Limits limits) throws IOException {
+        return new Reader(mapper.getDeserializationConfig(), limits, mapper::getFactory).readVariables(p);
     }
 
     public static Map<String, Object> deserializeVariablesObject(Object variables, ObjectMapper mapper) {
@@ -34,5 +59,157 @@ public class VariablesDeserializer extends JsonDeserializer<Map<String, Object>>
         }
     }
 
-}
+    /**
+     * How deeply variables may nest and how many values they may hold in total, counting every object, array and
+     * scalar.  Variables are rejected as soon as they exceed either while being read.  0 means no limit.
+     */
+    public static final class Limits {
+        public static final Limits NONE = new Limits(0, 0);
+
+        private final int maxDepth;
+        private final int maxValues;
+
+        public Limits(int maxDepth, int maxValues) {
+            this.maxDepth = maxDepth;
+            this.maxValues = maxValues;
+        }
+
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+
+        public int getMaxValues() {
+            return maxValues;
+        }
+
+        public boolean isLimited() {
+            return maxDepth > 0 || maxValues > 0;
+        }
+    }
+
+    private static final class Reader {
+        private final DeserializationConfig config;
+        private final Limits limits;
+        private final Supplier<JsonFactory> stringFactory;
+        private int values;
+
+        Reader(DeserializationConfig config, Limits limits, Supplier<JsonFactory> stringFactory) {
+            this.config = config;
+            this.limits = limits;
+            this.stringFactory = stringFactory;
+        }
+
+        Map<String, Object> readVariables(JsonParser p) throws IOException {
+            JsonToken token = p.currentToken() != null ? p.currentToken() : p.nextToken();
+            if (token == JsonToken.START_OBJECT) {
+                return readObject(p, 1);
+            }
+            if (token == JsonToken.VALUE_NULL) {
+                return null;
+            }
+
+            if (token == JsonToken.VALUE_STRING) {
+                try (JsonParser stringParser = stringFactory.get().createParser(p.getText())) {
+                    JsonToken stringToken = stringParser.nextToken();
+                    if (stringToken == JsonToken.START_OBJECT || stringToken == JsonToken.VALUE_NULL) {
+                        Map<String, Object> variables = stringToken == JsonToken.START_OBJECT ? readObject(stringParser, 1) : null;
+                        if (stringParser.nextToken() != null) {
+                            throw JsonMappingException.from(stringParser, "Unexpected content after the variables");
+                        }
+                        return variables;
+                    }
+                }
+            }
+
+            throw JsonMappingException.from(p, "variables should be either an object or a string");
+        }
+
+        private Map<String, Object> readObject(JsonParser p, int depth) throws IOException {
+            enter(p, depth);
 
+            Map<String, Object> object = new LinkedHashMap<>();
+            String name = p.nextFieldName();
+            while (name != null) {
+                p.nextToken();
+                object.put(name, readValue(p, depth));
+                name = p.nextFieldName();
+            }
+            if (p.currentToken() != JsonToken.END_OBJECT) {
+                throw JsonMappingException.from(p, "Unexpected end of the variables");
+            }
+            return object;
+        }
+
+        private List<Object> readArray(JsonParser p, int depth) throws IOException {
+            enter(p, depth);
+
+            List<Object> array = new ArrayList<>();
+            JsonToken token = p.nextToken();
+            while (token != JsonToken.END_ARRAY) {
+                if (token == null) {
+                    throw JsonMappingException.from(p, "Unexpected end of the variables");
+                }
+                array.add(readValue(p, depth));
+                token = p.nextToken();
+            }
+            return array;
+        }
+
+        private Object readValue(JsonParser p, int depth) throws IOException {
+            JsonToken token = p.currentToken();
+            if (token == null) {
+                throw JsonMappingException.from(p, "Unexpected end of the variables");
+            }
+
+            switch (token) {
+                case START_OBJECT:
+                    return readObject(p, depth + 1);
+                case START_ARRAY:
+                    return readArray(p, depth + 1);
+                default:
+                    count(p);
+                    return readScalar(p, token);
+            }
+        }
+
+        private Object readScalar(JsonParser p, JsonToken token) throws IOException {
+            switch (token) {
+                case VALUE_STRING:
+                    return p.getText();
+                case VALUE_NUMBER_INT:
+                    if (config.isEnabled(DeserializationFeature.USE_BIG_INTEGER_FOR_INTS)) {
+                        return p.getBigIntegerValue();
+                    }
+                    if (config.isEnabled(DeserializationFeature.USE_LONG_FOR_INTS) && p.getNumberType() == JsonParser.NumberType.INT) {
+                        return p.getLongValue();
+                    }
+                    return p.getNumberValue();
+                case VALUE_NUMBER_FLOAT:
+                    return config.isEnabled(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS) ? p.getDecimalValue() : p.getDoubleValue();
+                case VALUE_TRUE:
+                    return Boolean.TRUE;
+                case VALUE_FALSE:
+                    return Boolean.FALSE;
+                case VALUE_NULL:
+                    return null;
+                case VALUE_EMBEDDED_OBJECT:
+                    return p.getEmbeddedObject();
+                default:
+                    throw JsonMappingException.from(p, "Unexpected token " + token + " in the variables");
+            }
+        }
+
+        private void enter(JsonParser p, int depth) throws IOException {
+            if (limits.maxDepth > 0 && depth > limits.maxDepth) {
+                throw JsonMappingException.from(p, "Variables are nested deeper than " + limits.maxDepth + " levels");
+            }
+            count(p);
+        }
+
+        private void count(JsonParser p) throws IOException {
+            if (limits.maxValues > 0 && ++values > limits.maxValues) {
+                throw JsonMappingException.from(p, "Variables hold more than " + limits.maxValues + " values");
+            }
+        }
+    }
+}
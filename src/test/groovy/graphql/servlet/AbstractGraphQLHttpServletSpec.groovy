@@ -1,11 +1,27 @@
 package graphql.servlet
 
 import com.fasterxml.jackson.databind.ObjectMapper
+import com.google.common.hash.Hashing
+import graphql.ExecutionResultImpl
 import graphql.Scalars
 import graphql.execution.ExecutionTypeInfo
 import graphql.execution.instrumentation.ChainedInstrumentation
 import graphql.execution.instrumentation.Instrumentation
+import graphql.execution.instrumentation.SimpleInstrumentation
+import graphql.execution.instrumentation.parameters.InstrumentationExecutionParameters
+import graphql.execution.preparsed.NoOpPreparsedDocumentProvider
+import graphql.introspection.IntrospectionQuery
+import graphql.schema.Coercing
+import graphql.schema.GraphQLDirective
+import graphql.schema.GraphQLFieldDefinition
+import graphql.schema.GraphQLList
 import graphql.schema.GraphQLNonNull
+import graphql.schema.GraphQLObjectType
+import graphql.schema.GraphQLScalarType
+import graphql.schema.GraphQLSchema
+import graphql.schema.GraphQLTypeReference
+import org.dataloader.BatchLoader
+import org.dataloader.DataLoader
 import org.dataloader.DataLoaderRegistry
 import org.springframework.mock.web.MockHttpServletRequest
 import org.springframework.mock.web.MockHttpServletResponse
@@ -13,8 +29,28 @@ import spock.lang.Ignore
 import spock.lang.Shared
 import spock.lang.Specification
 
+import javax.servlet.AsyncEvent
+import javax.servlet.MultipartConfigElement
+import javax.servlet.ReadListener
 import javax.servlet.ServletInputStream
+import javax.servlet.ServletOutputStream
+import javax.servlet.WriteListener
 import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletRequestWrapper
+import javax.servlet.http.HttpServletResponse
+import javax.servlet.http.HttpServletResponseWrapper
+import javax.servlet.http.Part
+import java.nio.charset.StandardCharsets
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.function.Function
+import java.util.function.Supplier
+import java.util.zip.GZIPInputStream
+import java.util.zip.InflaterInputStream
 
 /**
  * @author Andrew Potter
@@ -44,6 +80,19 @@ class AbstractGraphQLHttpServletSpec extends Specification {
         mapper.readValue(response.getContentAsByteArray(), Map)
     }
 
+    // The mock response predates non-blocking IO, async servlet mode needs an output stream that takes a WriteListener.
+    HttpServletResponse getNonBlockingResponse() {
+        ServletOutputStream outputStream = new ServletOutputStream() {
+            void write(int b) { response.getOutputStream().write(b) }
+            void write(byte[] b, int off, int len) { response.getOutputStream().write(b, off, len) }
+            boolean isReady() { true }
+            void setWriteListener(WriteListener listener) { listener.onWritePossible() }
+        }
+        new HttpServletResponseWrapper(response) {
+            ServletOutputStream getOutputStream() { outputStream }
+        }
+    }
+
     List<Map<String, Object>> getBatchedResponseContent() {
         mapper.readValue(response.getContentAsByteArray(), List)
     }
@@ -192,6 +241,43 @@ class AbstractGraphQLHttpServletSpec extends Specification {
         getBatchedResponseContent()[1].data.echo == "test"
     }
 
+    def "HTTP GET tells query text from a batch by parsing the query parameter as JSON"() {
+        setup:
+        request.addParameter('query', query)
+
+        when:
+        servlet.doGet(request, response)
+
+        then:
+        response.getStatus() == STATUS_OK
+        (batched ? getBatchedResponseContent()[0] : getResponseContent()).data.echo == "test"
+
+        where:
+        query                                                       | batched
+        ' \n { echo(arg:"test") }'                                  | false
+        '# [ not a batch\nquery { echo(arg:"test") }'               | false
+        ' \n [{ "query": "query { echo(arg:\\"test\\") }" }]'  | true
+    }
+
+    def "HTTP GET rejects trailing content after the variables"() {
+        setup:
+        request.addParameter('query', 'query Echo($arg: String) { echo(arg:$arg) }')
+        request.addParameter('variables', variables)
+
+        when:
+        servlet.doGet(request, response)
+
+        then:
+        response.getStatus() == status
+
+        where:
+        variables                 | status
+        '{"arg": "test"} '        | STATUS_OK
+        'null'                    | STATUS_OK
+        '{"arg": "test"}garbage'  | STATUS_BAD_REQUEST
+        '{"arg": "test"} {}'      | STATUS_BAD_REQUEST
+    }
+
     def "batched query over HTTP GET with operationName returns data"() {
         when:
         response = new MockHttpServletResponse()
@@ -854,4 +940,1016 @@ class AbstractGraphQLHttpServletSpec extends Specification {
         actualInstrumentation instanceof ChainedInstrumentation
         actualInstrumentation != servletInstrumentation
     }
+
+    def "GraphQL instances are reused across requests for the same schema"() {
+        setup:
+        request.addParameter('query', 'query { echo(arg:"test") }')
+
+        when:
+        servlet.doGet(request, response)
+        servlet.doGet(request, new MockHttpServletResponse())
+
+        then:
+        servlet.getQueryInvoker().getGraphQLCacheStats().missCount() == 1
+        servlet.getQueryInvoker().getGraphQLCacheStats().hitCount() == 1
+    }
+
+    def "parsed documents are cached separately per schema"() {
+        setup:
+        CachingPreparsedDocumentProvider documentProvider = new CachingPreparsedDocumentProvider()
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema())
+                .withQueryInvoker(GraphQLQueryInvoker.newBuilder().withPreparsedDocumentProvider(documentProvider).build())
+                .build()
+        request.addParameter('query', 'query { echo(arg:"test") }')
+
+        when:
+        servlet.doGet(request, response)
+        servlet.doGet(request, new MockHttpServletResponse())
+
+        then:
+        documentProvider.getStats().missCount() == 1
+        documentProvider.getStats().hitCount() == 1
+
+        when:
+        MockHttpServletRequest postRequest = new MockHttpServletRequest()
+        postRequest.setContent(mapper.writeValueAsBytes([query: 'query { echo(arg:"test") }']))
+        servlet.doPost(postRequest, new MockHttpServletResponse())
+
+        then:
+        documentProvider.getStats().missCount() == 2
+    }
+
+    def "persisted query hash is registered over HTTP POST and resolved over HTTP GET"() {
+        setup:
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema())
+                .withPersistedQueryCache(new InMemoryPersistedQueryCache())
+                .build()
+        String query = 'query { echo(arg:"test") }'
+        String hash = Hashing.sha256().hashString(query, StandardCharsets.UTF_8).toString()
+        String extensions = mapper.writeValueAsString([persistedQuery: [version: 1, sha256Hash: hash]])
+        request.addParameter('extensions', extensions)
+
+        when:
+        servlet.doGet(request, response)
+
+        then:
+        response.getStatus() == STATUS_OK
+        getResponseContent().errors.first().message == "PersistedQueryNotFound"
+
+        when:
+        MockHttpServletRequest postRequest = new MockHttpServletRequest()
+        postRequest.setContent(mapper.writeValueAsBytes([query: query, extensions: mapper.readValue(extensions, Map)]))
+        servlet.doPost(postRequest, response = new MockHttpServletResponse())
+
+        then:
+        response.getStatus() == STATUS_OK
+        getResponseContent().data.echo == "test"
+
+        when:
+        servlet.doGet(request, response = new MockHttpServletResponse())
+
+        then:
+        response.getStatus() == STATUS_OK
+        getResponseContent().data.echo == "test"
+    }
+
+    def "persisted query with a hash that doesn't match the query is rejected"() {
+        setup:
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema())
+                .withPersistedQueryCache(new InMemoryPersistedQueryCache())
+                .build()
+        request.setContent(mapper.writeValueAsBytes([query: 'query { echo(arg:"test") }', extensions: [persistedQuery: [version: 1, sha256Hash: "abc"]]]))
+
+        when:
+        servlet.doPost(request, response)
+
+        then:
+        response.getStatus() == STATUS_OK
+        getResponseContent().errors.first().extensions.code == "INVALID_PERSISTED_QUERY_HASH"
+        getResponseContent().data == null
+    }
+
+    def "batched query executes the operations whose persisted queries resolve"() {
+        setup:
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema())
+                .withPersistedQueryCache(new InMemoryPersistedQueryCache())
+                .withBatchPipelining(pipelining)
+                .build()
+        request.setContent(mapper.writeValueAsBytes([
+                [query: 'query { echo(arg:"one") }'],
+                [extensions: [persistedQuery: [version: 1, sha256Hash: "abc"]]],
+                [query: 'query { echo(arg:"three") }']
+        ]))
+
+        when:
+        servlet.doPost(request, response)
+
+        then:
+        response.getStatus() == STATUS_OK
+        getBatchedResponseContent()[0].data.echo == "one"
+        getBatchedResponseContent()[1].errors*.message == ["PersistedQueryNotFound"]
+        getBatchedResponseContent()[2].data.echo == "three"
+
+        where:
+        pipelining << [false, true]
+    }
+
+    def "batched query with a batch executor returns results in request order"() {
+        setup:
+        ExecutorService executor = Executors.newFixedThreadPool(3)
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema({ env -> Thread.sleep(Long.parseLong(env.arguments.arg) * 50); env.arguments.arg }))
+                .withQueryInvoker(GraphQLQueryInvoker.newBuilder().withBatchExecutor(executor).withMaxBatchConcurrency(2).build())
+                .build()
+        request.addParameter('query', '[{ "query": "query { echo(arg:\\"3\\") }" }, { "query": "query { echo(arg:\\"1\\") }" }, { "query": "query { echo(arg:\\"2\\") }" }]')
+
+        when:
+        servlet.doGet(request, response)
+
+        then:
+        response.getStatus() == STATUS_OK
+        getBatchedResponseContent()*.data.echo == ["3", "1", "2"]
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    def "batched queries coalesce DataLoader keys when shared batch DataLoaders are enabled"() {
+        setup:
+        List<List<String>> batches = []
+        GraphQLContextBuilder contextBuilder = [build: { HttpServletRequest httpServletRequest ->
+            DataLoaderRegistry registry = new DataLoaderRegistry()
+            registry.register("echo", new DataLoader<String, String>({ List<String> keys ->
+                batches.add(keys)
+                CompletableFuture.completedFuture(keys)
+            } as BatchLoader<String, String>))
+            GraphQLContext context = new GraphQLContext(httpServletRequest)
+            context.setDataLoaderRegistry(registry)
+            context
+        }] as GraphQLContextBuilder
+        GraphQLInvocationInputFactory invocationInputFactory = GraphQLInvocationInputFactory
+                .newBuilder(TestUtils.createGraphQlSchema({ env -> env.getContext().getDataLoaderRegistry().get().getDataLoader("echo").load(env.arguments.arg) }))
+                .withGraphQLContextBuilder(contextBuilder)
+                .build()
+        servlet = SimpleGraphQLHttpServlet.newBuilder(invocationInputFactory)
+                .withQueryInvoker(GraphQLQueryInvoker.newBuilder().withSharedBatchDataLoaders(true).build())
+                .build()
+        request.addParameter('query', '[{ "query": "query { echo(arg:\\"a\\") }" }, { "query": "query { echo(arg:\\"b\\") }" }]')
+
+        when:
+        servlet.doGet(request, response)
+
+        then:
+        response.getStatus() == STATUS_OK
+        getBatchedResponseContent()*.data.echo == ["a", "b"]
+        batches == [["a", "b"]]
+    }
+
+    def "async servlet mode completes the request once an asynchronous data fetcher resolves"() {
+        setup:
+        CompletableFuture<String> echo = new CompletableFuture<>()
+        CountDownLatch fetched = new CountDownLatch(1)
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema({ env -> fetched.countDown(); echo }))
+                .withAsyncServletMode(true)
+                .build()
+        request.setAsyncSupported(true)
+        request.addParameter('query', 'query { echo(arg:"test") }')
+
+        when:
+        servlet.doGet(request, nonBlockingResponse)
+        fetched.await(5, TimeUnit.SECONDS)
+
+        then:
+        request.isAsyncStarted()
+
+        when:
+        echo.complete("async")
+        for (int i = 0; i < 100 && request.isAsyncStarted(); i++) {
+            Thread.sleep(50)
+        }
+
+        then:
+        !request.isAsyncStarted()
+        response.getStatus() == STATUS_OK
+        getResponseContent().data.echo == "async"
+    }
+
+    def "fields are not fetched once the execution deadline has passed"() {
+        setup:
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema({ env -> Thread.sleep(Long.parseLong(env.arguments.arg)); env.arguments.arg }))
+                .withQueryInvoker(GraphQLQueryInvoker.newBuilder().withInstrumentation(new ExecutionDeadlineInstrumentation(Duration.ofMillis(50))).build())
+                .build()
+        request.addParameter('query', 'query { first: echo(arg:"100") second: echo(arg:"0") }')
+
+        when:
+        servlet.doGet(request, response)
+
+        then:
+        response.getStatus() == STATUS_OK
+        getResponseContent().data == [first: "100", second: null]
+        getResponseContent().errors*.extensions.code == ["EXECUTION_TIMEOUT"]
+    }
+
+    def "every operation of a batch gets an execution deadline of its own"() {
+        setup:
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema({ env -> Thread.sleep(Long.parseLong(env.arguments.arg)); env.arguments.arg }))
+                .withQueryInvoker(GraphQLQueryInvoker.newBuilder().withInstrumentation(new ExecutionDeadlineInstrumentation(Duration.ofMillis(150))).build())
+                .build()
+        request.addParameter('query', '[{ "query": "query { first: echo(arg:\\"100\\") second: echo(arg:\\"0\\") }" }, { "query": "query { first: echo(arg:\\"100\\") second: echo(arg:\\"0\\") }" }]')
+
+        when:
+        servlet.doGet(request, response)
+
+        then:
+        response.getStatus() == STATUS_OK
+        getBatchedResponseContent()*.data == [[first: "100", second: "0"], [first: "100", second: "0"]]
+        getBatchedResponseContent()*.errors == [null, null]
+    }
+
+    def "an async timeout cuts short the operation of a batch running at the time and all that follow it"() {
+        setup:
+        CountDownLatch fetched = new CountDownLatch(1)
+        CountDownLatch timedOut = new CountDownLatch(1)
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema({ env ->
+                    if (env.arguments.arg == "block") {
+                        fetched.countDown()
+                        timedOut.await(5, TimeUnit.SECONDS)
+                    }
+                    env.arguments.arg
+                }))
+                .withQueryInvoker(GraphQLQueryInvoker.newBuilder().withInstrumentation(new ExecutionDeadlineInstrumentation(Duration.ofSeconds(10))).build())
+                .withAsyncServletMode(true)
+                .build()
+        request.setAsyncSupported(true)
+        request.addParameter('query', '[{ "query": "query { first: echo(arg:\\"block\\") second: echo(arg:\\"0\\") }" }, { "query": "query { echo(arg:\\"0\\") }" }]')
+
+        when:
+        servlet.doGet(request, nonBlockingResponse)
+        fetched.await(5, TimeUnit.SECONDS)
+        request.getAsyncContext().getListeners().each { it.onTimeout(new AsyncEvent(request.getAsyncContext())) }
+        timedOut.countDown()
+        for (int i = 0; i < 100 && request.isAsyncStarted(); i++) {
+            Thread.sleep(50)
+        }
+
+        then:
+        response.getStatus() == STATUS_OK
+        getBatchedResponseContent()*.data == [[first: "block", second: null], [echo: null]]
+        getBatchedResponseContent()*.errors*.extensions*.code == [["EXECUTION_TIMEOUT"], ["EXECUTION_TIMEOUT"]]
+    }
+
+    def "queries over the cost budget are rejected and the cost of the others is reported"() {
+        setup:
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema())
+                .withQueryInvoker(GraphQLQueryInvoker.newBuilder().withInstrumentation(QueryCostInstrumentation.newBuilder().withMaxCost(2).build()).build())
+                .build()
+
+        when:
+        request.addParameter('query', 'query { first: echo(arg:"a") second: echo(arg:"b") }')
+        servlet.doGet(request, response)
+
+        then:
+        response.getStatus() == STATUS_OK
+        getResponseContent().data.second == "b"
+        getResponseContent().extensions.queryCost == [cost: 2, depth: 1, breadth: 2]
+
+        when:
+        request = new MockHttpServletRequest()
+        response = new MockHttpServletResponse()
+        request.addParameter('query', 'query { first: echo(arg:"a") second: echo(arg:"b") third: echo(arg:"c") }')
+        servlet.doGet(request, response)
+
+        then:
+        response.getStatus() == STATUS_OK
+        getResponseContent().data == null
+        getResponseContent().errors.first().extensions.code == "QUERY_TOO_EXPENSIVE"
+        getResponseContent().errors.first().extensions.cost == 3
+    }
+
+    def "query cost multiplies by list arguments, follows skip directives and is cached per cost variables"() {
+        setup:
+        GraphQLObjectType item = GraphQLObjectType.newObject()
+                .name("Item")
+                .field { field -> field.name("name").type(Scalars.GraphQLString) }
+                .field { field -> field.name("price").type(Scalars.GraphQLInt) }
+                .field { field -> field.name("related").type(GraphQLTypeReference.typeRef("Item")) }
+                .build()
+        GraphQLObjectType query = GraphQLObjectType.newObject()
+                .name("Query")
+                .field { field ->
+            field.name("items")
+            field.type(GraphQLList.list(item))
+            field.argument { argument -> argument.name("first").type(Scalars.GraphQLInt) }
+            field.argument { argument -> argument.name("filter").type(Scalars.GraphQLString) }
+            field.withDirective(GraphQLDirective.newDirective().name(QueryCostInstrumentation.COST_DIRECTIVE)
+                    .argument { argument -> argument.name("weight").type(Scalars.GraphQLInt).value(2) }.build())
+            field.dataFetcher({ env -> (1..env.arguments.first).collect { [name: "item" + it, price: it] } })
+        }
+        .build()
+        QueryCostInstrumentation instrumentation = QueryCostInstrumentation.newBuilder().withMaxDepth(2).build()
+        servlet = SimpleGraphQLHttpServlet.newBuilder(new GraphQLSchema(query, null, [item].toSet()))
+                .withQueryInvoker(GraphQLQueryInvoker.newBuilder()
+                    .withInstrumentation(instrumentation)
+                    .withPreparsedDocumentProvider(NoOpPreparsedDocumentProvider.INSTANCE)
+                    .build())
+                .build()
+        String itemsQuery = 'query Items($n: Int, $skip: Boolean!, $filter: String) { items(first: $n, filter: $filter) { name price @skip(if: $skip) } }'
+        def post = { String graphQLQuery, Map<String, Object> variables ->
+            request = new MockHttpServletRequest()
+            response = new MockHttpServletResponse()
+            request.setContent(mapper.writeValueAsBytes([query: graphQLQuery, variables: variables]))
+            servlet.doPost(request, response)
+            getResponseContent()
+        }
+
+        expect:
+        post(itemsQuery, [n: 10, skip: false, filter: "a"]).extensions.queryCost == [cost: 22, depth: 2, breadth: 2]
+        post(itemsQuery, [n: 3, skip: false, filter: "a"]).extensions.queryCost == [cost: 8, depth: 2, breadth: 2]
+        post(itemsQuery, [n: 10, skip: true, filter: "a"]).extensions.queryCost == [cost: 12, depth: 2, breadth: 1]
+        instrumentation.getCacheStats().hitCount() == 0
+
+        post(itemsQuery, [n: 10, skip: false, filter: "b"]).extensions.queryCost == [cost: 22, depth: 2, breadth: 2]
+        post(itemsQuery.replace(' {', '\n  {'), [n: 10, skip: false, filter: "c"]).extensions.queryCost == [cost: 22, depth: 2, breadth: 2]
+        instrumentation.getCacheStats().hitCount() == 2
+
+        post('query { items(first: 1) { related { name } } }', [:]).errors.first().message == "Query depth 3 exceeds the maximum depth of 2"
+    }
+
+    def "read-only responses are served from the response cache"() {
+        setup:
+        int executions = 0
+        ResponseCache responseCache = new ResponseCache(Duration.ofMinutes(1), { context -> context.getHttpServletRequest().get().getHeader("X-User") } as Function<GraphQLContext, String>)
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema({ env -> executions++; env.arguments.arg }))
+                .withResponseCache(responseCache)
+                .build()
+        def get = { String user, String query ->
+            request = new MockHttpServletRequest()
+            response = new MockHttpServletResponse()
+            if (user != null) {
+                request.addHeader("X-User", user)
+            }
+            request.addParameter('query', query)
+            servlet.doGet(request, response)
+        }
+
+        when:
+        get("alice", 'query { echo(arg:"test") }')
+        get("alice", 'query {\n  echo(arg: "test"), # comment\n}')
+
+        then:
+        response.getStatus() == STATUS_OK
+        getResponseContent().data.echo == "test"
+        executions == 1
+        responseCache.getStats().hitCount() == 1
+
+        when:
+        get("bob", 'query { echo(arg:"test") }')
+        get(null, 'query { echo(arg:"test") }')
+        get(null, 'query { echo(arg:"test") }')
+        get("alice", 'query { echo(arg:"test ") }')
+
+        then:
+        getResponseContent().data.echo == "test "
+        executions == 5
+        responseCache.getStats().hitCount() == 1
+    }
+
+    def "async requests are rejected with service unavailable when the executor is saturated"() {
+        setup:
+        ExecutorService executor = Executors.newSingleThreadExecutor()
+        executor.shutdown()
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema())
+                .withAsyncServletMode(true)
+                .withAsyncExecutor(executor)
+                .build()
+        request.setAsyncSupported(true)
+        request.addParameter('query', 'query { echo(arg:"test") }')
+
+        when:
+        servlet.doGet(request, response)
+
+        then:
+        response.getStatus() == 503
+        response.getHeader("Retry-After") == "1"
+        !request.isAsyncStarted()
+        servlet.getAsyncRequestsRejected() == 1
+    }
+
+    def "streamed responses are flushed once the flush threshold is reached"() {
+        setup:
+        List<Boolean> committedAtFetch = []
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema({ env -> committedAtFetch << response.isCommitted(); env.arguments.arg }))
+                .withObjectMapper(GraphQLObjectMapper.newBuilder().withFlushThreshold(16).build())
+                .build()
+        request.addParameter('query', '[{ "query": "query { echo(arg:\\"test\\") }" }, { "query": "query { echo(arg:\\"test\\") }" }]')
+
+        when:
+        servlet.doGet(request, response)
+
+        then:
+        committedAtFetch == [false, true]
+        getBatchedResponseContent()*.data.echo == ["test", "test"]
+    }
+
+    def "async POST bodies are read with a read listener before the request is dispatched"() {
+        setup:
+        ByteArrayInputStream source = new ByteArrayInputStream('{ "query": "query { echo(arg:\\"test\\") }" }'.getBytes(StandardCharsets.UTF_8))
+        ReadListener readListener = null
+        ServletInputStream inputStream = new ServletInputStream() {
+            int read() { source.read() }
+            int read(byte[] b, int off, int len) { source.read(b, off, Math.min(len, 4)) }
+            boolean isFinished() { source.available() == 0 }
+            boolean isReady() { true }
+            void setReadListener(ReadListener listener) { readListener = listener }
+        }
+        HttpServletRequest requestWithReadListener = new HttpServletRequestWrapper(request) {
+            ServletInputStream getInputStream() { inputStream }
+        }
+        request.setAsyncSupported(true)
+        request.setContentType("application/json")
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema())
+                .withAsyncServletMode(true)
+                .build()
+
+        when:
+        servlet.doPost(requestWithReadListener, nonBlockingResponse)
+
+        then:
+        readListener != null
+        request.isAsyncStarted()
+        response.getContentAsByteArray().length == 0
+
+        when:
+        readListener.onDataAvailable()
+        readListener.onAllDataRead()
+        for (int i = 0; i < 100 && request.isAsyncStarted(); i++) {
+            Thread.sleep(50)
+        }
+
+        then:
+        !request.isAsyncStarted()
+        response.getStatus() == STATUS_OK
+        getResponseContent().data.echo == "test"
+    }
+
+    def "async POST bodies over the maximum size are rejected up front or once the limit is crossed"() {
+        setup:
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema())
+                .withAsyncServletMode(true)
+                .withMaxRequestBodySize(32)
+                .build()
+        byte[] content = '{ "query": "query { echo(arg:\\"test\\") }" }'.getBytes(StandardCharsets.UTF_8)
+        request.setAsyncSupported(true)
+        request.setContentType("application/json")
+        request.setContent(content)
+
+        when:
+        servlet.doPost(request, response)
+
+        then:
+        response.getStatus() == AbstractGraphQLHttpServlet.STATUS_PAYLOAD_TOO_LARGE
+        !request.isAsyncStarted()
+
+        when:
+        ByteArrayInputStream source = new ByteArrayInputStream(content)
+        ReadListener readListener = null
+        ServletInputStream inputStream = new ServletInputStream() {
+            int read() { source.read() }
+            int read(byte[] b, int off, int len) { source.read(b, off, len) }
+            boolean isFinished() { source.available() == 0 }
+            boolean isReady() { true }
+            void setReadListener(ReadListener listener) { readListener = listener }
+        }
+        request = new MockHttpServletRequest()
+        request.setAsyncSupported(true)
+        request.setContentType("application/json")
+        response = new MockHttpServletResponse()
+        servlet.doPost(new HttpServletRequestWrapper(request) {
+            ServletInputStream getInputStream() { inputStream }
+        }, response)
+        readListener.onDataAvailable()
+
+        then:
+        response.getStatus() == AbstractGraphQLHttpServlet.STATUS_PAYLOAD_TOO_LARGE
+        !request.isAsyncStarted()
+        source.available() == content.length - 33
+    }
+
+    def "async responses are written with a write listener once the client can take them"() {
+        setup:
+        WriteListener writeListener = null
+        boolean ready = false
+        ServletOutputStream outputStream = new ServletOutputStream() {
+            void write(int b) { response.getOutputStream().write(b) }
+            void write(byte[] b, int off, int len) { response.getOutputStream().write(b, off, len) }
+            boolean isReady() { ready }
+            void setWriteListener(WriteListener listener) { writeListener = listener }
+        }
+        HttpServletResponse slowResponse = new HttpServletResponseWrapper(response) {
+            ServletOutputStream getOutputStream() { outputStream }
+        }
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema())
+                .withAsyncServletMode(true)
+                .build()
+        request.setAsyncSupported(true)
+        request.addParameter('query', 'query { echo(arg:"test") }')
+
+        when:
+        servlet.doGet(request, slowResponse)
+        for (int i = 0; i < 100 && writeListener == null; i++) {
+            Thread.sleep(50)
+        }
+        writeListener.onWritePossible()
+
+        then:
+        request.isAsyncStarted()
+        response.getContentAsByteArray().length == 0
+
+        when:
+        ready = true
+        writeListener.onWritePossible()
+
+        then:
+        !request.isAsyncStarted()
+        getResponseContent().data.echo == "test"
+    }
+
+    def "batched query over HTTP POST body with leading whitespace returns data"() {
+        setup:
+        request.setContent((" " * 200 + '[{ "query": "query { echo(arg:\\"test\\") }" }]').bytes)
+
+        when:
+        servlet.doPost(request, response)
+
+        then:
+        response.getStatus() == STATUS_OK
+        getBatchedResponseContent()[0].data.echo == "test"
+    }
+
+    def "a malformed operation in a pipelined batch is answered in its place instead of cutting the array short"() {
+        setup:
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema())
+                .withBatchPipelining(true)
+                .build()
+        request.setContent('[{ "query": "query { echo(arg:\\"one\\") }" }, { "query": }, { "query": "query { echo(arg:\\"three\\") }" }]'.getBytes(StandardCharsets.UTF_8))
+
+        when:
+        servlet.doPost(request, response)
+
+        then:
+        response.getStatus() == STATUS_OK
+        getBatchedResponseContent().size() == 2
+        getBatchedResponseContent()[0].data.echo == "one"
+        getBatchedResponseContent()[1].errors*.message == ["Malformed request, the rest of the batch was not read"]
+
+        when:
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream()
+        GraphQLObjectMapper.newBuilder().build().createJsonGenerator(outputStream).withCloseable { generator ->
+            generator.writeStartArray()
+            generator.writeStartObject()
+        }
+
+        then:
+        outputStream.toString("UTF-8") == "[{"
+    }
+
+    def "pipelined batches are executed while the rest of the batch is still being read"() {
+        setup:
+        List<String> operations = (0..<300).collect { '{ "query": "query { echo(arg:\\"test' + it + '\\") }" }' }
+        operations[1] = mapper.writeValueAsString([extensions: [persistedQuery: [version: 1, sha256Hash: "abc"]]])
+        ByteArrayInputStream source = new ByteArrayInputStream(('[' + operations.join(',') + ']').getBytes(StandardCharsets.UTF_8))
+        ServletInputStream inputStream = new ServletInputStream() {
+            int read() { source.read() }
+            int read(byte[] b, int off, int len) { source.read(b, off, len) }
+            boolean isFinished() { source.available() == 0 }
+            boolean isReady() { true }
+            void setReadListener(ReadListener listener) {}
+        }
+        HttpServletRequest streamingRequest = new HttpServletRequestWrapper(request) {
+            ServletInputStream getInputStream() { inputStream }
+        }
+        Integer unreadAtFirstFetch = null
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema({ env ->
+            if (unreadAtFirstFetch == null) {
+                unreadAtFirstFetch = source.available()
+            }
+            env.arguments.arg
+        }))
+                .withBatchPipelining(true)
+                .build()
+
+        when:
+        servlet.doPost(streamingRequest, response)
+
+        then:
+        response.getStatus() == STATUS_OK
+        unreadAtFirstFetch > 0
+        getBatchedResponseContent().size() == 300
+        getBatchedResponseContent()[0].data.echo == "test0"
+        getBatchedResponseContent()[1].errors[0].message == "PersistedQueryNotSupported"
+        getBatchedResponseContent()[2].data.echo == "test2"
+        getBatchedResponseContent()[299].data.echo == "test299"
+    }
+
+    def "responses are compressed with the encoding the client prefers"() {
+        setup:
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema())
+                .withResponseCompression(new ResponseCompression())
+                .build()
+        request.setPathInfo('/schema.json')
+        request.addHeader("Accept-Encoding", acceptEncoding)
+
+        when:
+        servlet.doGet(request, response)
+        InputStream body = new ByteArrayInputStream(response.getContentAsByteArray())
+        body = contentEncoding == "gzip" ? new GZIPInputStream(body) : contentEncoding == "deflate" ? new InflaterInputStream(body) : body
+
+        then:
+        response.getStatus() == STATUS_OK
+        response.getHeader("Content-Encoding") == contentEncoding
+        response.getHeader("Vary") == "Accept-Encoding"
+        mapper.readValue(body, Map).data.__schema != null
+
+        where:
+        acceptEncoding             | contentEncoding
+        "gzip, deflate"            | "gzip"
+        "gzip;q=0.5, deflate"      | "deflate"
+        "br, *;q=0.1"              | "gzip"
+        "identity"                 | null
+    }
+
+    def "GET responses matching If-None-Match are answered with 304 and no body"() {
+        setup:
+        int executions = 0
+        Instrumentation countingInstrumentation = new SimpleInstrumentation() {
+            GraphQLSchema instrumentSchema(GraphQLSchema schema, InstrumentationExecutionParameters parameters) {
+                executions++
+                schema
+            }
+        }
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema())
+                .withQueryInvoker(GraphQLQueryInvoker.newBuilder().withInstrumentation(countingInstrumentation).build())
+                .withETagSupport(new ETagSupport("max-age=60", "public, max-age=3600"))
+                .build()
+        request.setPathInfo(path)
+        request.addParameter("query", 'query { echo(arg:"test") }')
+        servlet.doGet(request, response)
+        String eTag = response.getHeader("ETag")
+
+        MockHttpServletRequest conditionalRequest = new MockHttpServletRequest()
+        conditionalRequest.setPathInfo(path)
+        conditionalRequest.addParameter("query", 'query { echo(arg:"test") }')
+        conditionalRequest.addHeader("If-None-Match", eTag)
+        MockHttpServletResponse conditionalResponse = new MockHttpServletResponse()
+
+        when:
+        servlet.doGet(conditionalRequest, conditionalResponse)
+
+        then:
+        response.getStatus() == STATUS_OK
+        response.getHeader("Cache-Control") == cacheControl
+        eTag != null
+        conditionalResponse.getStatus() == ETagSupport.STATUS_NOT_MODIFIED
+        conditionalResponse.getHeader("ETag") == eTag
+        conditionalResponse.getHeader("Cache-Control") == cacheControl
+        conditionalResponse.getContentAsByteArray().length == 0
+        executions == expectedExecutions
+
+        where:
+        path           | cacheControl           | expectedExecutions
+        null           | "max-age=60"           | 2
+        '/schema.json' | "public, max-age=3600" | 1
+    }
+
+    def "introspection responses are executed once per schema and served pre-compressed"() {
+        setup:
+        int executions = 0
+        Instrumentation countingInstrumentation = new SimpleInstrumentation() {
+            GraphQLSchema instrumentSchema(GraphQLSchema schema, InstrumentationExecutionParameters parameters) {
+                executions++
+                schema
+            }
+        }
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema())
+                .withQueryInvoker(GraphQLQueryInvoker.newBuilder().withInstrumentation(countingInstrumentation).build())
+                .withIntrospectionCache(new IntrospectionCache())
+                .withResponseCompression(new ResponseCompression())
+                .build()
+        request.setPathInfo('/schema.json')
+        servlet.doGet(request, response)
+
+        MockHttpServletRequest postRequest = new MockHttpServletRequest()
+        postRequest.addHeader("Accept-Encoding", "gzip")
+        postRequest.setContent(mapper.writeValueAsBytes([query: IntrospectionQuery.INTROSPECTION_QUERY.replaceAll(/\s+/, " "), operationName: "IntrospectionQuery"]))
+        MockHttpServletResponse postResponse = new MockHttpServletResponse()
+
+        when:
+        servlet.doPost(postRequest, postResponse)
+
+        then:
+        executions == 1
+        postResponse.getStatus() == STATUS_OK
+        postResponse.getHeader("Content-Encoding") == "gzip"
+        mapper.readValue(new GZIPInputStream(new ByteArrayInputStream(postResponse.getContentAsByteArray())), Map) == getResponseContent()
+    }
+
+    def "multipart requests following the multipart request spec map files to variables and delete them afterwards"() {
+        setup:
+        boolean deleted = false
+        def file = new TestMultipartContentBuilder.MockPart("0", "file content") {
+            void delete() { deleted = true }
+        }
+        GraphQLScalarType upload = new GraphQLScalarType("Upload", "A file part", new Coercing<Part, Void>() {
+            Void serialize(Object dataFetcherResult) { null }
+            Part parseValue(Object input) { (Part) input }
+            Part parseLiteral(Object input) { null }
+        })
+        GraphQLObjectType query = GraphQLObjectType.newObject()
+                .name("Query")
+                .field { GraphQLFieldDefinition.Builder field ->
+            field.name("upload")
+            field.type(Scalars.GraphQLString)
+            field.argument { argument -> argument.name("file").type(upload) }
+            field.dataFetcher({ env -> ((Part) env.arguments.file).getInputStream().text })
+        }
+        .build()
+        servlet = SimpleGraphQLHttpServlet.newBuilder(new GraphQLSchema(query))
+                .withMultipartConfig(new MultipartConfigElement(null, 1024, 4096, 0))
+                .build()
+        request.setContentType("multipart/form-data, boundary=test")
+        request.setMethod("POST")
+        request.addPart(TestMultipartContentBuilder.createPart('operations', mapper.writeValueAsString([query: 'query($file: Upload) { upload(file: $file) }', variables: [file: null]])))
+        request.addPart(TestMultipartContentBuilder.createPart('map', mapper.writeValueAsString(["0": ["variables.file"]])))
+        request.addPart(file)
+
+        when:
+        servlet.doPost(request, response)
+
+        then:
+        response.getStatus() == STATUS_OK
+        getResponseContent().data.upload == "file content"
+        deleted
+
+        when:
+        MockHttpServletRequest largeRequest = new MockHttpServletRequest()
+        largeRequest.setContentType("multipart/form-data, boundary=test")
+        largeRequest.setMethod("POST")
+        largeRequest.addPart(TestMultipartContentBuilder.createPart('graphql', mapper.writeValueAsString([query: 'query { echo(arg:"test") }'])))
+        largeRequest.addPart(TestMultipartContentBuilder.createPart('0', "x" * 2048))
+        MockHttpServletResponse largeResponse = new MockHttpServletResponse()
+        servlet.doPost(largeRequest, largeResponse)
+
+        then:
+        largeResponse.getStatus() == AbstractGraphQLHttpServlet.STATUS_PAYLOAD_TOO_LARGE
+    }
+
+    def "requests over the concurrency limit are rejected right away and counted"() {
+        setup:
+        CompletableFuture<String> echo = new CompletableFuture<>()
+        CountDownLatch fetched = new CountDownLatch(1)
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema({ env -> fetched.countDown(); echo }))
+                .withConcurrencyLimiter(ConcurrencyLimiter.newBuilder()
+                    .withInitialLimit(1)
+                    .withMaxLimit(1)
+                    .withRejectionStatus(ConcurrencyLimiter.STATUS_TOO_MANY_REQUESTS)
+                    .withRetryAfter(Duration.ofSeconds(2))
+                    .build())
+                .withAsyncServletMode(true)
+                .build()
+        request.setAsyncSupported(true)
+        request.addParameter('query', 'query { echo(arg:"test") }')
+        MockHttpServletRequest rejectedRequest = new MockHttpServletRequest()
+        rejectedRequest.setAsyncSupported(true)
+        rejectedRequest.addParameter('query', 'query { echo(arg:"test") }')
+        MockHttpServletResponse rejectedResponse = new MockHttpServletResponse()
+
+        when:
+        servlet.doGet(request, nonBlockingResponse)
+        fetched.await(5, TimeUnit.SECONDS)
+        servlet.doGet(rejectedRequest, rejectedResponse)
+
+        then:
+        rejectedResponse.getStatus() == 429
+        rejectedResponse.getHeader("Retry-After") == "2"
+        !rejectedRequest.isAsyncStarted()
+        servlet.getConcurrencyLimit() == 1
+        servlet.getConcurrencyInFlight() == 1
+        servlet.getConcurrencyRejected() == 1
+
+        when:
+        echo.complete("async")
+        for (int i = 0; i < 100 && request.isAsyncStarted(); i++) {
+            Thread.sleep(50)
+        }
+
+        then:
+        response.getStatus() == STATUS_OK
+        getResponseContent().data.echo == "async"
+        servlet.getConcurrencyInFlight() == 0
+    }
+
+    def "the concurrency limit grows while the smoothed latency stays low and ignores single slow requests"() {
+        setup:
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.newBuilder().withInitialLimit(10).withMaxLimit(100).build()
+        long millis = TimeUnit.MILLISECONDS.toNanos(1)
+
+        when:
+        100.times { limiter.onSample(millis, 100) }
+        int grown = limiter.getLimit()
+        limiter.onSample(5 * millis, 100)
+
+        then:
+        grown > 10
+        limiter.getLimit() >= grown
+    }
+
+    def "the concurrency limit backs off while the smoothed latency stays high"() {
+        setup:
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.newBuilder().withInitialLimit(50).withMaxLimit(100).build()
+        long millis = TimeUnit.MILLISECONDS.toNanos(1)
+
+        when:
+        30.times { limiter.onSample(millis, 0) }
+        int settled = limiter.getLimit()
+        100.times { limiter.onSample(10 * millis, 0) }
+
+        then:
+        settled == 50
+        limiter.getLimit() < settled * 0.9 * 0.9
+    }
+
+    def "requests and responses are encoded in the negotiated binary format"() {
+        setup:
+        ObjectMapper binaryMapper = new ObjectMapper(format.createFactory())
+        request.setContentType(format.getMediaType())
+        request.addHeader("Accept", "${format.getMediaType()}, application/json;q=0.9")
+        request.setContent(binaryMapper.writeValueAsBytes([
+                query    : 'query Echo($arg: String) { echo(arg:$arg) }',
+                variables: [arg: 'test']
+        ]))
+
+        when:
+        servlet.doPost(request, response)
+
+        then:
+        response.getStatus() == STATUS_OK
+        response.getContentType() == format.getContentType()
+        response.getHeaders("Vary").contains("Accept")
+        binaryMapper.readValue(response.getContentAsByteArray(), Map).data.echo == "test"
+
+        where:
+        format << [WireFormat.CBOR, WireFormat.SMILE]
+    }
+
+    def "results are serialized directly, asking for the error handler only when there are errors"() {
+        setup:
+        int errorHandlers = 0
+        GraphQLObjectMapper graphQLObjectMapper = GraphQLObjectMapper.newBuilder()
+                .withGraphQLErrorHandler({ errorHandlers++; new DefaultGraphQLErrorHandler() } as Supplier<GraphQLErrorHandler>)
+                .build()
+
+        when:
+        Map<String, Object> withoutErrors = mapper.readValue(graphQLObjectMapper.serializeResultAsJson(new ExecutionResultImpl([echo: "test"], [], [cost: 1])), Map)
+
+        then:
+        withoutErrors == [data: [echo: "test"], extensions: [cost: 1]]
+        errorHandlers == 0
+
+        when:
+        Map<String, Object> withErrors = mapper.readValue(graphQLObjectMapper.serializeResultAsJsonBytes(new ExecutionResultImpl(null, [new GenericGraphQLError("failed")])), Map)
+
+        then:
+        withErrors.keySet() == ["data", "errors"] as Set
+        withErrors.data == null
+        withErrors.errors*.message == ["failed"]
+        errorHandlers == 1
+    }
+
+    def "the result tree writer writes the same JSON as the object mapper"() {
+        setup:
+        GraphQLObjectMapper treeWriterMapper = GraphQLObjectMapper.newBuilder().withResultTreeWriter(true).build()
+        GraphQLObjectMapper defaultMapper = GraphQLObjectMapper.newBuilder().build()
+        def data = [
+                echo    : "test",
+                count   : 3,
+                total   : 12345678901L,
+                ratio   : 0.5d,
+                exact   : new BigDecimal("1.10"),
+                flag    : true,
+                missing : null,
+                items   : [[id: 1, tags: ["a", "b"]], [id: 2, tags: new LinkedList(["c"])]],
+                optional: Optional.of("custom scalar")
+        ]
+        def result = new ExecutionResultImpl(data, [new GenericGraphQLError("failed")], [cost: [total: 4]])
+
+        expect:
+        treeWriterMapper.serializeResultAsJson(result) == defaultMapper.serializeResultAsJson(result)
+        mapper.readValue(treeWriterMapper.serializeResultAsJson(result), Map).data.optional == "custom scalar"
+    }
+
+    def "responses carry their exact content length and request readers are reused"() {
+        setup:
+        request.setContent(mapper.writeValueAsBytes([
+                query: 'query { echo(arg:"test") }'
+        ]))
+
+        when:
+        servlet.doPost(request, response)
+
+        then:
+        response.getStatus() == STATUS_OK
+        response.getContentLength() == response.getContentAsByteArray().length
+        getResponseContent().data.echo == "test"
+
+        when:
+        GraphQLObjectMapper graphQLObjectMapper = GraphQLObjectMapper.newBuilder().build()
+
+        then:
+        graphQLObjectMapper.getGraphQLRequestMapper().is(graphQLObjectMapper.getGraphQLRequestMapper())
+    }
+
+    def "responses outgrowing the buffers are streamed without a content length"() {
+        setup:
+        String large = "x" * (1100 * 1024)
+        request.setContent(mapper.writeValueAsBytes([
+                query    : 'query Echo($arg: String) { echo(arg:$arg) }',
+                variables: [arg: large]
+        ]))
+
+        when:
+        servlet.doPost(request, response)
+
+        then:
+        response.getStatus() == STATUS_OK
+        response.getContentLength() == 0
+        response.getHeader("Content-Length") == null
+        getResponseContent().data.echo == large
+    }
+
+    def "variables are read in one pass and rejected once they exceed the variables limits"() {
+        setup:
+        GraphQLObjectMapper graphQLObjectMapper = GraphQLObjectMapper.newBuilder().withVariablesLimits(3, 6).build()
+        servlet = SimpleGraphQLHttpServlet.newBuilder(TestUtils.createGraphQlSchema())
+                .withObjectMapper(graphQLObjectMapper)
+                .build()
+
+        expect:
+        graphQLObjectMapper.deserializeVariables('"{\\"arg\\": [1, 2.5, {\\"nested\\": true}]}"') == [arg: [1, 2.5d, [nested: true]]]
+
+        when:
+        request.addParameter('query', 'query Echo($arg: String) { echo(arg:$arg) }')
+        request.addParameter('variables', '{"arg": "test", "unused": [[[1]]]}')
+        servlet.doGet(request, response)
+
+        then:
+        response.getStatus() == STATUS_BAD_REQUEST
+
+        when:
+        response = new MockHttpServletResponse()
+        request = new MockHttpServletRequest()
+        request.setContent(mapper.writeValueAsBytes([
+                query    : 'query Echo($arg: String) { echo(arg:$arg) }',
+                variables: [arg: "test", unused: [1, 2, 3, 4, 5]]
+        ]))
+        servlet.doPost(request, response)
+
+        then:
+        response.getStatus() == STATUS_BAD_REQUEST
+
+        when:
+        response = new MockHttpServletResponse()
+        request = new MockHttpServletRequest()
+        request.setContent(mapper.writeValueAsBytes([
+                query    : 'query Echo($arg: String) { echo(arg:$arg) }',
+                variables: '{"arg": "test"}'
+        ]))
+        servlet.doPost(request, response)
+
+        then:
+        response.getStatus() == STATUS_OK
+        getResponseContent().data.echo == "test"
+    }
+
+    def "null variables, in either form, mean no variables and trailing content after string variables is rejected"() {
+        setup:
+        request.setContent(mapper.writeValueAsBytes([
+                query    : 'query Echo($arg: String) { echo(arg:$arg) }',
+                variables: variables
+        ]))
+
+        when:
+        servlet.doPost(request, response)
+
+        then:
+        response.getStatus() == status
+        status != STATUS_OK || getResponseContent().data.echo == null
+
+        where:
+        variables                     | status
+        null                          | STATUS_OK
+        'null'                        | STATUS_OK
+        ' null '                      | STATUS_OK
+        '{"arg": "test"} {}'          | STATUS_BAD_REQUEST
+        '{"arg": "test"} x'           | STATUS_BAD_REQUEST
+        'null null'                   | STATUS_BAD_REQUEST
+    }
 }